@@ -0,0 +1,103 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per point work of a frame without the canvas: moving the visible
+ * range and placing the points on screen, either one by one or through the
+ * level of detail pyramid, or drawing them into the pixels of the software
+ * renderer. One operation is one frame of scrolling.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+  private static final int CANVAS_WIDTH = 1920;
+  private static final int CANVAS_HEIGHT = 1080;
+  private static final float POINT_SIZE = 4;
+
+  /** Scroll of one frame at 120 pixels a second and 60 frames a second */
+  private static final float FRAME_STEP = 2;
+
+  /** Stands in for the point batcher, keeps the points from being optimized away */
+  private static final class ChecksumSink implements PointSink {
+    int count;
+    float sum;
+
+    @Override
+    public void add(float x, float y, float value) {
+      count++;
+      sum += x + y + value;
+    }
+  }
+
+  @Param({ SyntheticGenome.CHROM1, "1000000", "10000000" })
+  public String dataset;
+
+  private final Viewport mViewport = new Viewport();
+  private final ChecksumSink mSink = new ChecksumSink();
+  private final PointRaster mRaster = new PointRaster(new int[] { 0, 0, 0xFF },
+      new int[] { 0xFF, 0, 0 }, (int) POINT_SIZE);
+  private PointPyramid mPyramid;
+  private float mCanvasOffset;
+
+  @Setup
+  public void setUp() throws IOException {
+    PointStore points = SyntheticGenome.points(dataset);
+    mViewport.setPoints(points);
+    mViewport.setCanvasWidth(CANVAS_WIDTH);
+    mPyramid = new PointPyramid(points);
+    mRaster.resize(CANVAS_WIDTH, CANVAS_HEIGHT);
+    mCanvasOffset = 0;
+  }
+
+  /** Scrolls one frame, starting over once the data has gone by. */
+  private void scroll() {
+    mCanvasOffset += FRAME_STEP;
+    mViewport.update(mCanvasOffset);
+    if (mViewport.isExhausted()) {
+      mCanvasOffset = 0;
+      mViewport.update(mCanvasOffset);
+    }
+  }
+
+  @Benchmark
+  public float points() {
+    scroll();
+    mViewport.emit(mSink, CANVAS_HEIGHT);
+    return mSink.sum;
+  }
+
+  @Benchmark
+  public float pyramid() {
+    scroll();
+    mPyramid.draw(mSink, mCanvasOffset - CANVAS_WIDTH, mCanvasOffset, 0,
+        CANVAS_HEIGHT, POINT_SIZE);
+    return mSink.sum;
+  }
+
+  @Benchmark
+  public int[] raster() {
+    scroll();
+    mRaster.clear(0xFFFFFFFF);
+    mViewport.emit(mRaster, CANVAS_HEIGHT);
+    return mRaster.getPixels();
+  }
+}
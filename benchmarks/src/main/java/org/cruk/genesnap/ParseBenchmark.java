@@ -0,0 +1,73 @@
+package org.cruk.genesnap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a dataset: parsing the BAF text, reading the binary point set the
+ * app ships, and building the level of detail pyramid.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+  @Param({ SyntheticGenome.CHROM1, "1000000" })
+  public String dataset;
+
+  private byte[] mText;
+  private ByteBuffer mPointSet;
+  private PointStore mPoints;
+
+  @Setup
+  public void setUp() throws IOException {
+    if (SyntheticGenome.CHROM1.equals(dataset)) {
+      mText = SyntheticGenome.chrom1Text();
+    } else {
+      mText = SyntheticGenome.text(SyntheticGenome.points(dataset));
+    }
+    mPoints = parseText();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PointSetFile.write(out, new int[] { 1 }, new int[] { 0 },
+        new PointStore[] { mPoints });
+    byte[] bytes = out.toByteArray();
+    mPointSet = ByteBuffer.allocateDirect(bytes.length);
+    mPointSet.put(bytes);
+    mPointSet.flip();
+  }
+
+  @Benchmark
+  public PointStore parseText() throws IOException {
+    return new BafParser(PointStore.COMPACT_VALUE_BITS).parse(
+        new ByteArrayInputStream(mText));
+  }
+
+  @Benchmark
+  public PointStore readPointSet() throws IOException {
+    PointSetFile file = PointSetFile.read(mPointSet.duplicate());
+    return file.getPoints(0, PointStore.COMPACT_VALUE_BITS);
+  }
+
+  @Benchmark
+  public PointPyramid buildPyramid() {
+    return new PointPyramid(mPoints);
+  }
+}
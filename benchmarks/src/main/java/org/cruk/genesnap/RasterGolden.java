@@ -0,0 +1,121 @@
+package org.cruk.genesnap;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a few fixed frames with {@link PointRaster} and compares them pixel
+ * for pixel with the PNG images in a golden directory, so the software
+ * renderer can be checked without a device. Exits with status 1 if any
+ * frame differs; the frames that differ are written next to their golden
+ * image with an ".actual.png" suffix.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.cruk.genesnap.RasterGolden [--update] [golden dir]
+ * </pre>
+ *
+ * With --update the golden images are rewritten instead, after a deliberate
+ * change to the renderer.
+ */
+public final class RasterGolden {
+
+  private static final int CANVAS_WIDTH = 480;
+  private static final int CANVAS_HEIGHT = 270;
+  private static final int POINT_SIZE = 4;
+
+  /** Colours of the app, holo background_light behind */
+  private static final int[] POINT_RGB_EDGE = { 0xFF, 0, 0 };
+  private static final int[] POINT_RGB_MIDDLE = { 0, 0, 0xFF };
+  private static final int BACKGROUND = 0xFFF3F3F3;
+
+  /** Frames: dataset, canvas offset */
+  private static final Object[][] FRAMES = {
+      { SyntheticGenome.CHROM1, 480f },
+      { SyntheticGenome.CHROM1, 240f },
+      { SyntheticGenome.CHROM1, 2000.5f },
+      { SyntheticGenome.CHROM1, 4999.25f },
+      { "100000", 10000f }, };
+
+  private RasterGolden() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    boolean update = args.length > 0 && "--update".equals(args[0]);
+    File directory = new File(args.length > (update ? 1 : 0)
+        ? args[args.length - 1] : "golden");
+    if (update && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+
+    PointRaster raster = new PointRaster(POINT_RGB_MIDDLE, POINT_RGB_EDGE,
+        POINT_SIZE);
+    Viewport viewport = new Viewport();
+    viewport.setCanvasWidth(CANVAS_WIDTH);
+    int failures = 0;
+    for (Object[] frame : FRAMES) {
+      String dataset = (String) frame[0];
+      float canvasOffset = (Float) frame[1];
+      viewport.setPoints(SyntheticGenome.points(dataset));
+      viewport.update(canvasOffset);
+      raster.resize(CANVAS_WIDTH, CANVAS_HEIGHT);
+      raster.clear(BACKGROUND);
+      viewport.emit(raster, CANVAS_HEIGHT);
+
+      String name = dataset + "-" + canvasOffset;
+      File golden = new File(directory, name + ".png");
+      BufferedImage actual = image(raster);
+      if (update) {
+        ImageIO.write(actual, "png", golden);
+        System.out.println("Wrote " + golden);
+        continue;
+      }
+      int differences = differences(actual, golden);
+      if (differences == 0) {
+        System.out.println("OK   " + name);
+      } else {
+        failures++;
+        File output = new File(directory, name + ".actual.png");
+        ImageIO.write(actual, "png", output);
+        System.out.println("FAIL " + name + ": "
+            + (differences < 0 ? "no golden image" : differences
+                + " pixels differ") + ", see " + output);
+      }
+    }
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static BufferedImage image(PointRaster raster) {
+    BufferedImage image = new BufferedImage(raster.getWidth(),
+        raster.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    image.setRGB(0, 0, raster.getWidth(), raster.getHeight(),
+        raster.getPixels(), 0, raster.getWidth());
+    return image;
+  }
+
+  /** Number of pixels that differ from the golden image, -1 if there is none. */
+  private static int differences(BufferedImage actual, File golden)
+      throws IOException {
+    if (!golden.isFile()) {
+      return -1;
+    }
+    BufferedImage expected = ImageIO.read(golden);
+    if (expected.getWidth() != actual.getWidth()
+        || expected.getHeight() != actual.getHeight()) {
+      return actual.getWidth() * actual.getHeight();
+    }
+    int differences = 0;
+    for (int y = 0; y < actual.getHeight(); y++) {
+      for (int x = 0; x < actual.getWidth(); x++) {
+        if (expected.getRGB(x, y) != actual.getRGB(x, y)) {
+          differences++;
+        }
+      }
+    }
+    return differences;
+  }
+}
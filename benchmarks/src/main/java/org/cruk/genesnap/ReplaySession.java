@@ -0,0 +1,108 @@
+package org.cruk.genesnap;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays sessions recorded by the app (the .gss files in its sessions
+ * directory) again with {@link SessionReplayer}, and prints what happened
+ * and how long it took. A replay that ends with another score than the one
+ * recorded on the device is reported, and makes the exit status 1.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar org.cruk.genesnap.ReplaySession \
+ *     [--real-time] [--points points.gsp] session.gss...
+ * </pre>
+ *
+ * The points are those of the point set the app was built with,
+ * ../eclipse/assets/points.gsp unless --points says otherwise.
+ */
+public final class ReplaySession {
+
+  static final String DEFAULT_POINTS = "../eclipse/assets/points.gsp";
+
+  private ReplaySession() {
+  }
+
+  public static void main(String[] args) throws IOException,
+      InterruptedException {
+    boolean realTime = false;
+    int mismatches = 0;
+    File pointSet = new File(DEFAULT_POINTS);
+    int i = 0;
+    for (; i < args.length && args[i].startsWith("--"); i++) {
+      if ("--real-time".equals(args[i])) {
+        realTime = true;
+      } else if ("--points".equals(args[i]) && i + 1 < args.length) {
+        pointSet = new File(args[++i]);
+      } else {
+        usage();
+      }
+    }
+    if (i == args.length) {
+      usage();
+    }
+    for (; i < args.length; i++) {
+      SessionFile session = SessionFile.read(map(new File(args[i])));
+      SessionReplayer replayer = new SessionReplayer(session,
+          points(session, pointSet));
+      long start = System.nanoTime();
+      int score = replayer.replay(realTime);
+      long time = System.nanoTime() - start;
+      System.out.println(args[i] + ": dataset " + session.getDatasetId()
+          + ", " + session.getWidth() + "x" + session.getHeight() + ", "
+          + session.getSampleCount() + " samples, "
+          + replayer.getFrameCount() + " frames, "
+          + replayer.getEnteredCount() + " lines entered, "
+          + replayer.getSelectionCount() + " left, score " + score + " in "
+          + time / 1000000 + " ms");
+      int recorded = session.getScore();
+      if (recorded != SessionFile.NO_SCORE && recorded != score) {
+        mismatches++;
+        System.out.println(args[i] + ": MISMATCH, the device scored "
+            + recorded);
+      }
+    }
+    if (mismatches > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: ReplaySession [--real-time] "
+        + "[--points points.gsp] session.gss...");
+    System.exit(2);
+  }
+
+  /**
+   * Points of the dataset a session was played on, from a point set file,
+   * at the precision the app loads them at.
+   */
+  static PointStore points(SessionFile session, File pointSet)
+      throws IOException {
+    if (session.getDatasetId() == SessionFile.WHOLE_GENOME) {
+      throw new IOException("Whole genome sessions cannot be replayed");
+    }
+    PointSetFile points = PointSetFile.read(map(pointSet));
+    // Dataset ids are chromosome codes
+    int entry = points.indexOf(session.getDatasetId());
+    if (entry < 0) {
+      throw new IOException("No dataset " + session.getDatasetId() + " in "
+          + pointSet);
+    }
+    return points.getPoints(entry, PointStore.COMPACT_VALUE_BITS);
+  }
+
+  static ByteBuffer map(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+  }
+}
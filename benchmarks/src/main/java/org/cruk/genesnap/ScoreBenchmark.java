@@ -0,0 +1,66 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting the points under every selection, the worst case of a frame
+ * where all the selections changed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScoreBenchmark {
+
+  private static final int CANVAS_WIDTH = 1920;
+  private static final float SELECTION_WIDTH = 60;
+
+  @Param({ SyntheticGenome.CHROM1, "1000000", "10000000" })
+  public String dataset;
+
+  @Param({ "10", "100", "1000" })
+  public int selections;
+
+  private final Viewport mViewport = new Viewport();
+  private Selection[] mSelections;
+
+  @Setup
+  public void setUp() throws IOException {
+    PointStore points = SyntheticGenome.points(dataset);
+    mViewport.setPoints(points);
+    mViewport.setCanvasWidth(CANVAS_WIDTH);
+    // Somewhere in the middle of the data
+    mViewport.update(points.scaled(points.size() / 2));
+    float[][] extents = SyntheticGenome.selections(points, selections,
+        SELECTION_WIDTH, 7);
+    mSelections = new Selection[selections];
+    for (int i = 0; i < selections; i++) {
+      mSelections[i] = new Selection(extents[i][0], extents[i][1],
+          extents[i][2], 0);
+    }
+  }
+
+  @Benchmark
+  public int calculateScore() {
+    int score = 0;
+    for (Selection selection : mSelections) {
+      score += selection.calculateScore(mViewport);
+    }
+    return score;
+  }
+}
@@ -0,0 +1,66 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Segmenting one chunk of the size SegmentationEngine hands to a thread, and
+ * the runtime check of a selection against a segmentation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SegmentationBenchmark {
+
+  private static final float SELECTION_WIDTH = 60;
+
+  @Param({ SyntheticGenome.CHROM1, "1000000" })
+  public String dataset;
+
+  private PointStore mPoints;
+  private Segmentation mSegmentation;
+  private Selection[] mSelections;
+
+  @Setup
+  public void setUp() throws IOException {
+    mPoints = SyntheticGenome.points(dataset);
+    mSegmentation = Segmentation.segment(mPoints, 0, mPoints.size());
+    float[][] extents = SyntheticGenome.selections(mPoints, 100,
+        SELECTION_WIDTH, 7);
+    mSelections = new Selection[extents.length];
+    for (int i = 0; i < extents.length; i++) {
+      mSelections[i] = new Selection(extents[i][0], extents[i][1],
+          extents[i][2], 0);
+    }
+  }
+
+  @Benchmark
+  public Segmentation segmentChunk() {
+    int to = Math.min(mPoints.size(), Segmentation.CHUNK_POINTS);
+    return Segmentation.segment(mPoints, 0, to);
+  }
+
+  @Benchmark
+  public float agreement() {
+    float sum = 0;
+    for (Selection selection : mSelections) {
+      sum += mSegmentation.agreement(mPoints, selection);
+    }
+    return sum;
+  }
+}
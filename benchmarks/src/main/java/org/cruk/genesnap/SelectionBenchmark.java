@@ -0,0 +1,97 @@
+package org.cruk.genesnap;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Touch handling: cutting one selection with another, and whole drag
+ * gestures over a board that already holds many selections.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectionBenchmark {
+
+  /** Pixels between the starts of the selections on the board */
+  private static final float SPACING = 40;
+  private static final float WIDTH = 20;
+
+  /** A drag: this many moves of MOVE_STEP pixels */
+  private static final int MOVES = 8;
+  private static final float MOVE_STEP = 5;
+
+  private static final int GESTURES = 4096;
+
+  /** Loser extents hitting each case of intersectInPlace, then a miss */
+  private static final float[][] CASES = { { 0, 50 }, { 60, 120 },
+      { 50, 90 }, { 20, 120 }, { 200, 300 } };
+
+  @Param({ "10", "100", "1000" })
+  public int selections;
+
+  private final Selection mWinner = new Selection(40, 100, 0.5f, 0);
+  private final Selection mLoser = new Selection(0, 0, 0.5f, 0);
+  private int mCase;
+
+  private SelectionBoard mBoard;
+  private final float[] mGestureStarts = new float[GESTURES];
+  private final float[] mGestureHeights = new float[GESTURES];
+  private int mGesture;
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    mBoard = new SelectionBoard();
+    for (int i = 0; i < selections; i++) {
+      mBoard.down(i * SPACING, 0.5f, 0);
+      mBoard.up(i * SPACING + WIDTH);
+    }
+    Random random = new Random(11);
+    for (int i = 0; i < GESTURES; i++) {
+      mGestureStarts[i] = random.nextFloat() * selections * SPACING;
+      mGestureHeights[i] = random.nextFloat();
+    }
+    mGesture = 0;
+  }
+
+  @Benchmark
+  public Selection intersectInPlace() {
+    float[] extent = CASES[mCase];
+    mCase = (mCase + 1) % CASES.length;
+    mLoser.startOffset = extent[0];
+    mLoser.endOffset = extent[1];
+    return mWinner.intersectInPlace(mLoser);
+  }
+
+  /**
+   * One drag over the board. The board keeps the lines drawn, so its size
+   * drifts from the parameter towards the number of lines that fit.
+   */
+  @Benchmark
+  public int drag() {
+    int gesture = mGesture;
+    mGesture = (gesture + 1) % GESTURES;
+    float start = mGestureStarts[gesture];
+    mBoard.down(start, mGestureHeights[gesture], 0);
+    for (int i = 1; i <= MOVES; i++) {
+      mBoard.move(start + i * MOVE_STEP);
+    }
+    mBoard.up(start + MOVES * MOVE_STEP);
+    return mBoard.size();
+  }
+}
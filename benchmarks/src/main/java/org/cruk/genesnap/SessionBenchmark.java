@@ -0,0 +1,68 @@
+package org.cruk.genesnap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole round replayed as fast as possible: every frame of scrolling, the
+ * touch samples of the session and the rescoring of the selections. One
+ * operation is one round.
+ *
+ * Plays a generated session over chrom1 by default. Sessions recorded by
+ * the app are replayed with e.g. <code>-p session=session-123.gss</code>,
+ * their points read from <code>-p points=...</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionBenchmark {
+
+  /** Parameter value for a generated session */
+  private static final String SYNTHETIC = "synthetic";
+
+  /** Drags of the generated session */
+  private static final int DRAGS = 60;
+
+  @Param({ SYNTHETIC })
+  public String session;
+
+  @Param({ ReplaySession.DEFAULT_POINTS })
+  public String points;
+
+  private SessionReplayer mReplayer;
+
+  @Setup
+  public void setUp() throws IOException {
+    if (SYNTHETIC.equals(session)) {
+      PointStore chrom1 = SyntheticGenome.points(SyntheticGenome.CHROM1);
+      mReplayer = new SessionReplayer(SyntheticGenome.session(chrom1, DRAGS,
+          7), chrom1);
+    } else {
+      SessionFile recorded = SessionFile.read(ReplaySession.map(new File(
+          session)));
+      mReplayer = new SessionReplayer(recorded, ReplaySession.points(
+          recorded, new File(points)));
+    }
+  }
+
+  @Benchmark
+  public int replay() throws InterruptedException {
+    return mReplayer.replay(false);
+  }
+}
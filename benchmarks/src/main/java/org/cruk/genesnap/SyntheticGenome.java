@@ -0,0 +1,164 @@
+package org.cruk.genesnap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Inputs for the benchmarks: the chromosome 1 data shipped with the app and
+ * generated data at genome scale.
+ */
+final class SyntheticGenome {
+
+  /**
+   * Bases the generated points span: most of a human genome, as much as the
+   * int positions of a {@link PointStore} can hold
+   */
+  static final int GENOME_LENGTH = 2000000000;
+
+  /** Parameter value for the chromosome 1 data */
+  static final String CHROM1 = "chrom1";
+
+  /** Surface and display of the generated sessions */
+  private static final int SESSION_WIDTH = 1920;
+  private static final int SESSION_HEIGHT = 1080;
+  private static final int SESSION_FRAME_PERIOD = 1000000000 / 60;
+  /** A drag: a down, a move every MOVE_INTERVAL ms for DRAG_LENGTH ms, an up */
+  private static final int DRAG_LENGTH = 600;
+  private static final int MOVE_INTERVAL = 8;
+
+  private SyntheticGenome() {
+  }
+
+  /** Bytes of the chromosome 1 text file. */
+  static byte[] chrom1Text() throws IOException {
+    InputStream in = SyntheticGenome.class.getResourceAsStream("/chrom1.txt");
+    if (in == null) {
+      throw new IOException("chrom1.txt is not on the classpath");
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Points of a dataset: <code>"chrom1"</code> for the shipped data, or a
+   * number of points to generate.
+   */
+  static PointStore points(String dataset) throws IOException {
+    if (CHROM1.equals(dataset)) {
+      return new BafParser(PointStore.COMPACT_VALUE_BITS).parse(
+          new ByteArrayInputStream(chrom1Text()));
+    }
+    return points(Integer.parseInt(dataset), 42);
+  }
+
+  /**
+   * <code>count</code> points spread over GENOME_LENGTH bases, with values
+   * clustered like a B allele frequency plot: homozygous at 0 and 1,
+   * heterozygous around 0.5, with stretches of imbalance.
+   */
+  static PointStore points(int count, long seed) {
+    Random random = new Random(seed);
+    PointStore.Builder points = new PointStore.Builder(
+        PointStore.COMPACT_VALUE_BITS);
+    double step = (double) GENOME_LENGTH / count;
+    double pos = 0;
+    float imbalance = 0;
+    for (int i = 0; i < count; i++) {
+      pos += step * 2 * random.nextDouble();
+      if (random.nextInt(20000) == 0) {
+        imbalance = random.nextBoolean() ? 0 : 0.1f + 0.3f * random.nextFloat();
+      }
+      float value;
+      int genotype = random.nextInt(3);
+      if (genotype == 1) {
+        value = 0.5f + (random.nextBoolean() ? imbalance : -imbalance);
+      } else {
+        value = genotype == 0 ? 0 : 1;
+      }
+      value += (float) (random.nextGaussian() * 0.03);
+      points.add((int) Math.min(pos, Integer.MAX_VALUE), value);
+    }
+    return points.build();
+  }
+
+  /**
+   * The same points as lines of a BAF text file: chromosome, position and
+   * value separated by tabs, values already in [0.15, 0.85] like the files
+   * the parser trims to.
+   */
+  static byte[] text(PointStore points) {
+    StringBuilder text = new StringBuilder(points.size() * 24);
+    for (int i = 0; i < points.size(); i++) {
+      text.append("1\t").append(points.position(i)).append('\t')
+          .append(0.15f + points.value(i) * 0.7f).append('\n');
+    }
+    try {
+      return text.toString().getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * <code>count</code> disjoint selections of <code>width</code> pixels
+   * spread evenly over the points, at random heights.
+   */
+  static float[][] selections(PointStore points, int count, float width,
+      long seed) {
+    Random random = new Random(seed);
+    float first = points.scaled(0);
+    float last = points.scaled(points.size() - 1);
+    float spacing = (last - first) / count;
+    float[][] selections = new float[count][];
+    for (int i = 0; i < count; i++) {
+      float start = first + i * spacing;
+      selections[i] = new float[] { start,
+          start + Math.min(width, spacing * 0.9f), random.nextFloat() };
+    }
+    return selections;
+  }
+
+  /**
+   * A session of <code>drags</code> drags spread evenly over the round
+   * playing <code>points</code>, each starting at a random place on the
+   * screen and moving right, as recorded by the app.
+   */
+  static SessionFile session(PointStore points, int drags, long seed)
+      throws IOException {
+    Random random = new Random(seed);
+    long start = 100000;
+    SessionFile.Writer session = new SessionFile.Writer(1,
+        SESSION_FRAME_PERIOD, start * 1000000L);
+    session.setSurfaceSize(SESSION_WIDTH, SESSION_HEIGHT);
+    float end = points.scaled(points.size() - 1) + SESSION_WIDTH;
+    long length = (long) (end / Viewport.SCROLL_SPEED * 1000);
+    for (int i = 0; i < drags; i++) {
+      long time = start + length * i / drags;
+      float x = random.nextFloat() * SESSION_WIDTH * 0.8f;
+      float y = random.nextFloat() * SESSION_HEIGHT;
+      session.add(TouchRing.ACTION_DOWN, x, y, time);
+      for (int t = MOVE_INTERVAL; t < DRAG_LENGTH; t += MOVE_INTERVAL) {
+        session.add(TouchRing.ACTION_MOVE, x + t * 0.3f, y, time + t);
+      }
+      session.add(TouchRing.ACTION_UP, x + DRAG_LENGTH * 0.3f, y, time
+          + DRAG_LENGTH);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    session.writeTo(out);
+    return SessionFile.read(ByteBuffer.wrap(out.toByteArray()));
+  }
+}
@@ -0,0 +1,325 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Parser for the whitespace separated chromosome / position / BAF text files
+ * we ship in res/raw.
+ *
+ * Works directly on the bytes of the stream and adds the kept points
+ * straight to a {@link PointStore.Builder}, so parsing a file does not
+ * create any per-line objects. Points whose value falls outside
+ * [POINT_VALUE_TRIM, 1 - POINT_VALUE_TRIM] are dropped, the remaining values
+ * are stretched back to [0, 1] and positions, parsed as exact integers, are
+ * made relative to the first kept position of their chromosome.
+ *
+ * The result is a store as consumed by
+ * {@link GeneRadarView.GeneRadarThread#setPoints(PointStore, PointPyramid)}. The
+ * chromosome runs found in the file are available afterwards through
+ * {@link #getChromosomeCount()} and friends.
+ */
+public final class BafParser {
+
+  public static final float POINT_VALUE_TRIM = 0.15f;
+
+  public static final int CHROMOSOME_UNKNOWN = 0;
+  public static final int CHROMOSOME_X = 23;
+  public static final int CHROMOSOME_Y = 24;
+  public static final int CHROMOSOME_MT = 25;
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /** Largest mantissa for which float division is still exact, 2^24. */
+  private static final long MAX_EXACT_MANTISSA = 1 << 24;
+
+  /** Powers of ten that are exactly representable as a float. */
+  private static final float[] POWERS_OF_TEN = {
+      1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+  private byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+
+  private final int mValueBits;
+  private PointStore.Builder mPoints;
+
+  private int[] mChromosomes = new int[4];
+  private int[] mChromosomeStarts = new int[4];
+  private int[] mChromosomeBases = new int[4];
+  private int mChromosomeCount = 0;
+
+  /** Start and end of the fields of the line being parsed. */
+  private final int[] mFieldStarts = new int[3];
+  private final int[] mFieldEnds = new int[3];
+
+  private int mFirstPos = -1;
+
+  /** Parser keeping values to {@link PointStore#PRECISE_VALUE_BITS}. */
+  public BafParser() {
+    this(PointStore.PRECISE_VALUE_BITS);
+  }
+
+  /**
+   * @param valueBits
+   *          precision of the values of the parsed store, see
+   *          {@link PointStore.Builder#Builder(int)}
+   */
+  public BafParser(int valueBits) {
+    mValueBits = valueBits;
+  }
+
+  /**
+   * Reads the whole stream and returns the kept points. The stream is not
+   * closed.
+   */
+  public PointStore parse(InputStream in) throws IOException {
+    mPoints = new PointStore.Builder(mValueBits);
+    mChromosomeCount = 0;
+    int filled = 0;
+    int read;
+    while ((read = in.read(mBuffer, filled, mBuffer.length - filled)) != -1) {
+      filled += read;
+      int consumed = parseLines(filled, false);
+      if (consumed == 0 && filled == mBuffer.length) {
+        // A single line longer than the buffer, make room for it
+        mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+      } else if (consumed > 0) {
+        System.arraycopy(mBuffer, consumed, mBuffer, 0, filled - consumed);
+        filled -= consumed;
+      }
+    }
+    parseLines(filled, true);
+    return mPoints.build();
+  }
+
+  /** Number of chromosome runs found by the last call to {@link #parse}. */
+  public int getChromosomeCount() {
+    return mChromosomeCount;
+  }
+
+  /** Chromosome code of the given run, see {@link #chromosomeCode}. */
+  public int getChromosome(int run) {
+    return mChromosomes[run];
+  }
+
+  /** Index of the first point of the given run in the parsed store. */
+  public int getChromosomeStart(int run) {
+    return mChromosomeStarts[run];
+  }
+
+  /** Index right after the last point of the given run in the parsed store. */
+  public int getChromosomeEnd(int run) {
+    return run + 1 < mChromosomeCount ? mChromosomeStarts[run + 1] : mPoints.size();
+  }
+
+  /** Position that was subtracted from all the points of the given run. */
+  public int getChromosomeBase(int run) {
+    return mChromosomeBases[run];
+  }
+
+  /**
+   * Parses all the complete lines in the first <code>filled</code> bytes of
+   * the buffer. If <code>last</code> is set the trailing bytes are parsed as
+   * a line even without a line terminator.
+   *
+   * @return the number of bytes consumed
+   */
+  private int parseLines(int filled, boolean last) {
+    byte[] buf = mBuffer;
+    int lineStart = 0;
+    for (int i = 0; i < filled; i++) {
+      if (buf[i] == '\n') {
+        parseLine(lineStart, i);
+        lineStart = i + 1;
+      }
+    }
+    if (last && lineStart < filled) {
+      parseLine(lineStart, filled);
+      lineStart = filled;
+    }
+    return lineStart;
+  }
+
+  private void parseLine(int start, int end) {
+    byte[] buf = mBuffer;
+    int fields = 0;
+    int i = start;
+    while (fields < 3) {
+      while (i < end && isWhitespace(buf[i])) {
+        i++;
+      }
+      if (i == end) {
+        break;
+      }
+      mFieldStarts[fields] = i;
+      while (i < end && !isWhitespace(buf[i])) {
+        i++;
+      }
+      mFieldEnds[fields] = i;
+      fields++;
+    }
+    if (fields == 0) {
+      // Blank line
+      return;
+    }
+    if (fields < 3) {
+      throw new NumberFormatException("Expected 3 columns in: "
+          + new String(buf, start, end - start));
+    }
+
+    float value = parseFloat(mFieldStarts[2], mFieldEnds[2]);
+    // Positive form so NaN values are dropped too
+    if (!(value >= POINT_VALUE_TRIM && value <= 1 - POINT_VALUE_TRIM)) {
+      return;
+    }
+    int chromosome = chromosomeCode(buf, mFieldStarts[0], mFieldEnds[0]);
+    int pos = parsePosition(mFieldStarts[1], mFieldEnds[1]);
+    if (mChromosomeCount == 0 || mChromosomes[mChromosomeCount - 1] != chromosome) {
+      startChromosome(chromosome, pos);
+    }
+    value = (value - 0.15f) / 0.7f;
+    mPoints.add(pos - mFirstPos, value);
+  }
+
+  private void startChromosome(int chromosome, int firstPos) {
+    if (mChromosomeCount == mChromosomes.length) {
+      int capacity = mChromosomes.length * 2;
+      mChromosomes = Arrays.copyOf(mChromosomes, capacity);
+      mChromosomeStarts = Arrays.copyOf(mChromosomeStarts, capacity);
+      mChromosomeBases = Arrays.copyOf(mChromosomeBases, capacity);
+    }
+    mChromosomes[mChromosomeCount] = chromosome;
+    mChromosomeStarts[mChromosomeCount] = mPoints.size();
+    mChromosomeBases[mChromosomeCount] = firstPos;
+    mChromosomeCount++;
+    mFirstPos = firstPos;
+  }
+
+  /**
+   * Parses a position. Plain integers are parsed exactly, anything else is
+   * parsed as a decimal and rounded to the nearest integer.
+   */
+  private int parsePosition(int start, int end) {
+    byte[] buf = mBuffer;
+    long position = 0;
+    for (int i = start; i < end; i++) {
+      byte b = buf[i];
+      if (b < '0' || b > '9' || i - start > 9) {
+        return (int) Math.round(Double.parseDouble(
+            new String(buf, start, end - start)));
+      }
+      position = position * 10 + (b - '0');
+    }
+    if (position > Integer.MAX_VALUE) {
+      throw new NumberFormatException("Position out of range: " + position);
+    }
+    return (int) position;
+  }
+
+  /**
+   * Parses a decimal number. Gives exactly the same result as
+   * {@link Float#parseFloat(String)}: plain decimals that fit in a float
+   * mantissa are computed with a single correctly rounded division, anything
+   * else (exponents, very long fractions) goes through the JDK.
+   */
+  private float parseFloat(int start, int end) {
+    byte[] buf = mBuffer;
+    int i = start;
+    boolean negative = false;
+    if (buf[i] == '-' || buf[i] == '+') {
+      negative = buf[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int fractionDigits = -1;
+    int digits = 0;
+    for (; i < end; i++) {
+      byte b = buf[i];
+      if (b >= '0' && b <= '9') {
+        mantissa = mantissa * 10 + (b - '0');
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+        if (++digits > 18) {
+          return parseFloatSlow(start, end);
+        }
+      } else if (b == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        return parseFloatSlow(start, end);
+      }
+    }
+    if (digits == 0) {
+      return parseFloatSlow(start, end);
+    }
+    float result;
+    if (fractionDigits <= 0) {
+      // long to float conversion rounds to nearest, just like parseFloat
+      result = mantissa;
+    } else if (mantissa <= MAX_EXACT_MANTISSA && fractionDigits < POWERS_OF_TEN.length) {
+      // Both operands are exact so the quotient is correctly rounded
+      result = mantissa / POWERS_OF_TEN[fractionDigits];
+    } else {
+      return parseFloatSlow(start, end);
+    }
+    return negative ? -result : result;
+  }
+
+  private float parseFloatSlow(int start, int end) {
+    return Float.parseFloat(new String(mBuffer, start, end - start));
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == 0x0B || b == '\f';
+  }
+
+  /**
+   * Maps a chromosome name such as "1", "chr12", "X" or "MT" to a small
+   * integer code: 1-22 for the autosomes, then {@link #CHROMOSOME_X},
+   * {@link #CHROMOSOME_Y} and {@link #CHROMOSOME_MT}. Anything else is
+   * {@link #CHROMOSOME_UNKNOWN}.
+   */
+  public static int chromosomeCode(byte[] buf, int start, int end) {
+    if (end - start > 3 && (buf[start] | 0x20) == 'c' && (buf[start + 1] | 0x20) == 'h'
+        && (buf[start + 2] | 0x20) == 'r') {
+      start += 3;
+    }
+    if (start == end) {
+      return CHROMOSOME_UNKNOWN;
+    }
+    int first = buf[start] | 0x20;
+    if (end - start == 1 && first == 'x') {
+      return CHROMOSOME_X;
+    }
+    if (end - start == 1 && first == 'y') {
+      return CHROMOSOME_Y;
+    }
+    if (first == 'm' && (end - start == 1 || (end - start == 2 && (buf[start + 1] | 0x20) == 't'))) {
+      return CHROMOSOME_MT;
+    }
+    int code = 0;
+    for (int i = start; i < end; i++) {
+      if (buf[i] < '0' || buf[i] > '9' || code > CHROMOSOME_MT) {
+        return CHROMOSOME_UNKNOWN;
+      }
+      code = code * 10 + (buf[i] - '0');
+    }
+    return code < CHROMOSOME_X ? code : CHROMOSOME_UNKNOWN;
+  }
+
+  /** Human readable name for a code returned by {@link #chromosomeCode}. */
+  public static String chromosomeName(int code) {
+    switch (code) {
+    case CHROMOSOME_X:
+      return "X";
+    case CHROMOSOME_Y:
+      return "Y";
+    case CHROMOSOME_MT:
+      return "MT";
+    case CHROMOSOME_UNKNOWN:
+      return "?";
+    default:
+      return Integer.toString(code);
+    }
+  }
+}
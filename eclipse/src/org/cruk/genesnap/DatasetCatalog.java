@@ -0,0 +1,317 @@
+package org.cruk.genesnap;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.util.Log;
+
+/**
+ * The chromosomes that can be played, and how to load their points.
+ *
+ * Datasets come from the entries of the precompiled point set asset. If the
+ * asset is missing or broken the catalog falls back to a single dataset
+ * parsed from res/raw/chrom1. The parsed points are then kept as a point set
+ * file in the cache directory, named after the resource id and length and
+ * when the app was installed or updated, so later launches map it instead
+ * of parsing again without reading the text.
+ */
+class DatasetCatalog {
+
+  private static final String TAG = DatasetCatalog.class.getName();
+
+  /** Point set compiled from res/raw by tools/PointSetConverter. */
+  private static final String POINTS_ASSET = "points.gsp";
+
+  /** Prefix of the files of parsed text in the cache directory */
+  private static final String PARSED_PREFIX = "parsed-";
+
+  /** One playable chromosome. */
+  static final class Dataset {
+    /** Stable id, used as the cache key. The chromosome code for now. */
+    final int id;
+    final int chromosome;
+    /** Number of points, or -1 if unknown until loaded. */
+    final int pointCount;
+    /** Entry in the point set, or -1 for the text fallback. */
+    private final int entry;
+    /**
+     * Genomic position of the points at pos 0. For the text fallback only
+     * known once loaded.
+     */
+    volatile int base;
+
+    private Dataset(int chromosome, int pointCount, int entry, int base) {
+      this.id = chromosome;
+      this.chromosome = chromosome;
+      this.pointCount = pointCount;
+      this.entry = entry;
+      this.base = base;
+    }
+
+    /**
+     * Approximate size in bytes of the loaded points, at the 3 to 4 bytes a
+     * point of a {@link PointStore} takes.
+     */
+    int byteSize() {
+      return pointCount < 0 ? -1 : pointCount * 4;
+    }
+
+    @Override
+    public String toString() {
+      return "chr" + BafParser.chromosomeName(chromosome);
+    }
+  }
+
+  private final Context mContext;
+  private final List<Dataset> mDatasets = new ArrayList<Dataset>();
+  private PointSetFile mPointSet;
+  private boolean mOpen = false;
+
+  DatasetCatalog(Context context) {
+    mContext = context.getApplicationContext();
+  }
+
+  /**
+   * Reads the point set directory. Does I/O, so call it from a background
+   * thread. Calling it again once open does nothing.
+   */
+  synchronized void open() {
+    if (mOpen) {
+      return;
+    }
+    try {
+      mPointSet = PointSetFile.read(readAsset(mContext.getAssets(), POINTS_ASSET));
+      for (int i = 0; i < mPointSet.getChromosomeCount(); i++) {
+        mDatasets.add(new Dataset(mPointSet.getChromosome(i),
+            mPointSet.getPointCount(i), i, mPointSet.getBasePosition(i)));
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not read " + POINTS_ASSET + ", parsing text data", e);
+      mPointSet = null;
+      mDatasets.clear();
+    }
+    if (mDatasets.isEmpty()) {
+      mDatasets.add(new Dataset(1, -1, -1, 0));
+    }
+    mOpen = true;
+  }
+
+  synchronized int size() {
+    return mDatasets.size();
+  }
+
+  synchronized Dataset get(int index) {
+    return mDatasets.get(index);
+  }
+
+  /**
+   * The point set the datasets come from, null until {@link #open} or when
+   * playing the text fallback.
+   */
+  synchronized PointSetFile getPointSet() {
+    return mPointSet;
+  }
+
+  /**
+   * Loads the points of a dataset, values to
+   * {@link PointStore#COMPACT_VALUE_BITS}. Does I/O, so call it from a
+   * background thread.
+   *
+   * @return the points, or null if they could not be read
+   */
+  PointStore load(Dataset dataset) {
+    open();
+    if (dataset.entry >= 0) {
+      return mPointSet.getPoints(dataset.entry, PointStore.COMPACT_VALUE_BITS);
+    }
+
+    try {
+      return loadText(dataset, R.raw.chrom1);
+    } catch (IOException e) {
+      Log.e(TAG, "Exception reading data file", e);
+      return null;
+    }
+  }
+
+  /**
+   * Loads the points of a text resource from the cache directory, or parses
+   * them and caches them if they are not there or the cached file is
+   * corrupt. Only reads the text when the cache is cold; the checksum of the
+   * cached file is what validates a warm one.
+   */
+  private PointStore loadText(Dataset dataset, int resId) throws IOException {
+    long start = System.nanoTime();
+    // Resources only change with the app, so this names their version
+    String key = PARSED_PREFIX + resId + "-" + resourceLength(resId) + "-"
+        + Long.toHexString(appUpdateTime());
+    File directory = mContext.getCacheDir();
+    File file = new File(directory, key + ".gsp");
+
+    if (file.isFile()) {
+      try {
+        PointSetFile cached = PointSetFile.read(map(file));
+        if (cached.getChromosomeCount() == 1) {
+          PointStore points = cached.getPoints(0, PointStore.COMPACT_VALUE_BITS);
+          dataset.base = cached.getBasePosition(0);
+          Log.d(TAG, "Loaded " + points.size() + " parsed points from "
+              + file + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+          return points;
+        }
+        Log.w(TAG, "Parsing again, unexpected entries in " + file);
+      } catch (IOException e) {
+        Log.w(TAG, "Parsing again, could not use " + file + ": "
+            + e.getMessage());
+      }
+    }
+
+    BafParser parser = new BafParser(PointStore.COMPACT_VALUE_BITS);
+    PointStore points;
+    InputStream in = mContext.getResources().openRawResource(resId);
+    try {
+      points = parser.parse(in);
+    } finally {
+      in.close();
+    }
+    int chromosome = 1;
+    if (parser.getChromosomeCount() > 0) {
+      chromosome = parser.getChromosome(0);
+      dataset.base = parser.getChromosomeBase(0);
+    }
+    Log.d(TAG, "Parsed " + points.size() + " points in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+    deleteParsed(directory, PARSED_PREFIX + resId + "-");
+    writeParsed(file, chromosome, dataset.base, points);
+    return points;
+  }
+
+  /** Length of a raw resource, -1 if it is compressed in the APK. */
+  private long resourceLength(int resId) throws IOException {
+    AssetFileDescriptor fd;
+    try {
+      fd = mContext.getResources().openRawResourceFd(resId);
+    } catch (Resources.NotFoundException e) {
+      // Compressed in the APK, no file descriptor available
+      return -1;
+    }
+    try {
+      return fd.getLength();
+    } finally {
+      fd.close();
+    }
+  }
+
+  /** When the app was last installed or updated, in ms since the epoch. */
+  private long appUpdateTime() throws IOException {
+    try {
+      return mContext.getPackageManager().getPackageInfo(
+          mContext.getPackageName(), 0).lastUpdateTime;
+    } catch (PackageManager.NameNotFoundException e) {
+      throw new IOException("Could not find our own package", e);
+    }
+  }
+
+  /** Deletes the cached files of older versions of a resource. */
+  private static void deleteParsed(File directory, String prefix) {
+    String[] names = directory.list();
+    if (names == null) {
+      return;
+    }
+    for (String name : names) {
+      if (name.startsWith(prefix)) {
+        new File(directory, name).delete();
+      }
+    }
+  }
+
+  /** Writes to a temporary file first so a crash never leaves half a file. */
+  private static void writeParsed(File file, int chromosome, int base,
+      PointStore points) {
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Could not create " + directory);
+      return;
+    }
+    File tmp = new File(directory, file.getName() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        PointSetFile.write(out, new int[] { chromosome }, new int[] { base },
+            new PointStore[] { points });
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write " + file, e);
+      tmp.delete();
+    }
+  }
+
+  /** Maps a whole file, read only. */
+  private static ByteBuffer map(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Gets the whole content of an asset as a buffer. Uncompressed assets are
+   * memory mapped straight from the APK, so the kernel can drop their pages
+   * under memory pressure; compressed ones are inflated into a direct buffer
+   * with one bulk read.
+   */
+  private static ByteBuffer readAsset(AssetManager assets, String name)
+      throws IOException {
+    AssetFileDescriptor fd = null;
+    try {
+      fd = assets.openFd(name);
+      FileChannel channel = fd.createInputStream().getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(),
+          fd.getLength());
+    } catch (FileNotFoundException e) {
+      // Compressed in the APK, no file descriptor available
+    } finally {
+      if (fd != null) {
+        fd.close();
+      }
+    }
+
+    InputStream in = assets.open(name, AssetManager.ACCESS_BUFFER);
+    try {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(in.available());
+      ReadableByteChannel channel = Channels.newChannel(in);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) == -1) {
+          throw new EOFException("Truncated asset " + name);
+        }
+      }
+      buffer.flip();
+      return buffer;
+    } finally {
+      in.close();
+    }
+  }
+}
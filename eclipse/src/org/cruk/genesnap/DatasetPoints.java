@@ -0,0 +1,32 @@
+package org.cruk.genesnap;
+
+import android.util.Log;
+
+/**
+ * The points of a loaded dataset and their {@link PointPyramid}, built
+ * together on the loading thread so a round can start drawing from the
+ * pyramid straight away, and cached together in the {@link PointCache}.
+ * Immutable.
+ */
+final class DatasetPoints {
+
+  private static final String TAG = DatasetPoints.class.getName();
+
+  final PointStore points;
+  final PointPyramid pyramid;
+
+  /** Builds the pyramid of <code>points</code>, O(n): call it off the UI thread. */
+  DatasetPoints(PointStore points) {
+    long start = System.nanoTime();
+    this.points = points;
+    this.pyramid = new PointPyramid(points);
+    Log.d(TAG, "Built pyramid of " + points.size() + " points in "
+        + (System.nanoTime() - start) / 1000000 + " ms, "
+        + pyramid.cellCount(0) + " cells at level 0");
+  }
+
+  /** Approximate size in bytes of the points and the pyramid. */
+  int byteSize() {
+    return points.byteSize() + pyramid.byteSize();
+  }
+}
@@ -0,0 +1,134 @@
+package org.cruk.genesnap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.cruk.genesnap.DatasetCatalog.Dataset;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Loads the dataset we expect to play next, and builds its pyramid, into
+ * the {@link PointCache} while the current round is still running, on a
+ * single background priority thread so it does not take CPU from the
+ * render thread.
+ */
+class DatasetPrefetcher {
+
+  private static final String TAG = DatasetPrefetcher.class.getName();
+
+  private final DatasetCatalog mCatalog;
+  private final PointCache mCache;
+  private final ExecutorService mExecutor;
+
+  /** Dataset being prefetched, or null */
+  private Dataset mPendingDataset;
+  private Future<DatasetPoints> mPending;
+  /** Set by shutdown, loads then happen on the calling thread */
+  private boolean mShutdown;
+
+  DatasetPrefetcher(DatasetCatalog catalog, PointCache cache) {
+    mCatalog = catalog;
+    mCache = cache;
+    mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+          }
+        }, "DatasetPrefetcher");
+      }
+    });
+  }
+
+  /** Guesses the dataset after the given catalog index: the next chromosome. */
+  Dataset predictNext(int datasetIndex) {
+    return mCatalog.get((datasetIndex + 1) % mCatalog.size());
+  }
+
+  /**
+   * Starts loading a dataset in the background unless it is already cached
+   * or on its way.
+   */
+  synchronized void prefetch(final Dataset dataset) {
+    if (mShutdown || dataset == mPendingDataset || mCache.snapshot().containsKey(dataset.id)) {
+      return;
+    }
+    mPendingDataset = dataset;
+    mPending = mExecutor.submit(new Callable<DatasetPoints>() {
+      @Override
+      public DatasetPoints call() {
+        DatasetPoints points = loadNow(dataset);
+        if (points != null) {
+          mCache.put(dataset.id, points);
+        }
+        synchronized (DatasetPrefetcher.this) {
+          if (mPendingDataset == dataset) {
+            mPendingDataset = null;
+            mPending = null;
+          }
+        }
+        Log.d(TAG, "Prefetched " + dataset + ", " + mCache.stats());
+        return points;
+      }
+    });
+  }
+
+  /**
+   * Gets the points of a dataset, waiting for the prefetch of it if one is
+   * running and loading them on the calling thread otherwise. Blocks, so
+   * call it from a background thread.
+   */
+  DatasetPoints load(Dataset dataset) {
+    Future<DatasetPoints> pending = null;
+    synchronized (this) {
+      if (dataset == mPendingDataset) {
+        pending = mPending;
+      }
+    }
+    if (pending != null) {
+      try {
+        return pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Prefetch of " + dataset + " failed, loading again", e);
+      } catch (CancellationException e) {
+        // Dropped by shutdown, possibly before it started
+      }
+    }
+    return loadNow(dataset);
+  }
+
+  /** Loads a dataset and builds its pyramid on the calling thread. */
+  private DatasetPoints loadNow(Dataset dataset) {
+    PointStore points = mCatalog.load(dataset);
+    return points != null ? new DatasetPoints(points) : null;
+  }
+
+  /**
+   * Stops the background thread, dropping any prefetch in flight. A loader
+   * still waiting for it, or asking for it later, loads the points itself:
+   * shutdownNow() only discards queued tasks, their futures would never
+   * complete if they were not cancelled.
+   */
+  synchronized void shutdown() {
+    mShutdown = true;
+    if (mPending != null) {
+      mPending.cancel(true);
+    }
+    mPending = null;
+    mPendingDataset = null;
+    mExecutor.shutdownNow();
+  }
+}
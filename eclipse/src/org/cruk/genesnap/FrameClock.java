@@ -0,0 +1,100 @@
+package org.cruk.genesnap;
+
+/**
+ * Frame timing at the display refresh rate on the monotonic
+ * {@link System#nanoTime()} clock, and a count of the frames missed.
+ *
+ * On a display the surface paces the frames: posting one blocks until the
+ * display takes a buffer. {@link #framePosted} then counts the refresh
+ * periods between two posts that went by without a frame. Off a display
+ * {@link #waitForNextFrame} paces frames itself instead, on a fixed grid of
+ * refresh periods. After a slow frame the grid is moved forward by whole
+ * periods rather than trying to catch up with a burst of frames.
+ */
+final class FrameClock {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /** Used when the display reports a nonsensical refresh rate */
+  private static final float DEFAULT_REFRESH_RATE = 60;
+
+  private final long mFramePeriod;
+  private long mNextDeadline;
+  /** When the last frame was posted, 0 if none since the surface was lost */
+  private long mLastPost;
+  private long mFrames;
+  private long mMissedFrames;
+
+  FrameClock(float refreshRate) {
+    if (!(refreshRate >= 1)) {
+      refreshRate = DEFAULT_REFRESH_RATE;
+    }
+    mFramePeriod = (long) (NANOS_PER_SECOND / refreshRate);
+    mNextDeadline = System.nanoTime() + mFramePeriod;
+  }
+
+  /** Length of a frame, in nanoseconds. */
+  long getFramePeriod() {
+    return mFramePeriod;
+  }
+
+  /**
+   * Counts a frame posted to the display at <code>now</code>, and the
+   * refresh periods since the previous one that went by without a frame.
+   */
+  void framePosted(long now) {
+    mFrames++;
+    if (mLastPost != 0) {
+      // Rounded, as posts return a little after the refresh they waited for
+      long missed = (now - mLastPost + mFramePeriod / 2) / mFramePeriod - 1;
+      if (missed > 0) {
+        mMissedFrames += missed;
+      }
+    }
+    mLastPost = now;
+  }
+
+  /**
+   * Sleeps for a frame while there is no surface to post to. The time
+   * without a surface is not counted as missed frames.
+   */
+  void waitForSurface() throws InterruptedException {
+    mLastPost = 0;
+    Thread.sleep(mFramePeriod / NANOS_PER_MILLI,
+        (int) (mFramePeriod % NANOS_PER_MILLI));
+  }
+
+  /**
+   * Sleeps until the deadline of the current frame and moves on to the next
+   * one. Returns straight away, counting the missed frames, if the deadline
+   * has already passed.
+   */
+  void waitForNextFrame() throws InterruptedException {
+    mFrames++;
+    long now = System.nanoTime();
+    long wait = mNextDeadline - now;
+    if (wait > 0) {
+      Thread.sleep(wait / NANOS_PER_MILLI, (int) (wait % NANOS_PER_MILLI));
+      mNextDeadline += mFramePeriod;
+    } else {
+      long late = -wait / mFramePeriod + 1;
+      mMissedFrames += late;
+      mNextDeadline += late * mFramePeriod;
+    }
+  }
+
+  long getFrames() {
+    return mFrames;
+  }
+
+  /** Frame periods that went by without a frame. */
+  long getMissedFrames() {
+    return mMissedFrames;
+  }
+
+  /** Current time of the monotonic clock, in milliseconds. */
+  static long uptimeMillis() {
+    return System.nanoTime() / NANOS_PER_MILLI;
+  }
+}
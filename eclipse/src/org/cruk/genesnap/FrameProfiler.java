@@ -0,0 +1,303 @@
+package org.cruk.genesnap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.Log;
+
+/**
+ * Records how long each phase of the render loop takes, frame by frame,
+ * into a preallocated ring of the last CAPACITY frames.
+ *
+ * The render thread calls {@link #beginFrame} at the top of the loop, then
+ * {@link #mark} at the end of every phase, then {@link #endFrame}. While
+ * disabled these return after checking a field. Percentiles are refreshed
+ * every STATS_INTERVAL frames and can be drawn over the frame with
+ * {@link #draw}; {@link #requestDump} writes the ring to a trace file.
+ *
+ * A trace file is little endian: MAGIC, VERSION, the number of phases, the
+ * name of every phase as a length byte and ASCII characters, and the number
+ * of frames, then for every frame, oldest first, the time since the previous
+ * frame and the time of every phase, all ints in nanoseconds.
+ */
+final class FrameProfiler {
+
+  private static final String TAG = FrameProfiler.class.getName();
+
+  /** "GSFT" */
+  static final int MAGIC = 0x54465347;
+  /** Changes with the layout of the file, not with the phases, see above */
+  static final int VERSION = 2;
+
+  static final int PHASE_SYNC = 0;
+  static final int PHASE_PHYSICS = 1;
+  static final int PHASE_INPUT = 2;
+  static final int PHASE_SCORE = 3;
+  static final int PHASE_SNAPSHOT = 4;
+  static final int PHASE_LOCK = 5;
+  static final int PHASE_POINTS = 6;
+  static final int PHASE_SELECTIONS = 7;
+  static final int PHASE_OVERLAY = 8;
+  static final int PHASE_POST = 9;
+  static final int PHASES = 10;
+
+  private static final String[] PHASE_NAMES = { "sync", "physics", "input",
+      "score", "snapshot", "lock", "points", "lines", "overlay", "post" };
+
+  /** Frames kept in the ring */
+  static final int CAPACITY = 512;
+
+  /** Frames between refreshes of the percentiles */
+  private static final int STATS_INTERVAL = 30;
+
+  /** Row of the frame interval in the ring and the stats */
+  private static final int FRAME = PHASES;
+
+  /** Long enough for any line of the overlay */
+  private static final int LINE_LENGTH = 80;
+  private static final float LINE_HEIGHT = 22;
+
+  private volatile boolean mEnabled;
+  private volatile File mDumpFile;
+
+  /** mEnabled as of beginFrame, so a frame is recorded whole or not at all */
+  private boolean mRecording;
+
+  /** Nanoseconds per frame and phase, CAPACITY frames per row */
+  private final long[][] mRing = new long[PHASES + 1][CAPACITY];
+  private int mNext;
+  private int mCount;
+  private int mSinceStats;
+  private long mFrameStart;
+  private long mLastMark;
+
+  private final long[] mSorted = new long[CAPACITY];
+  /** p50, p95 and p99 of every row */
+  private final long[][] mPercentiles = new long[PHASES + 1][3];
+  private long mFps10;
+
+  private final char[][] mLines = new char[PHASES + 2][LINE_LENGTH];
+  private final int[] mLineLengths = new int[PHASES + 2];
+
+  boolean isEnabled() {
+    return mEnabled;
+  }
+
+  /**
+   * Can be called from any thread. The ring starts over empty at the first
+   * {@link #beginFrame} after enabling.
+   */
+  void setEnabled(boolean enabled) {
+    mEnabled = enabled;
+  }
+
+  /**
+   * Asks the render thread to write the frames recorded so far to
+   * <code>file</code> at the end of the current frame. Can be called from
+   * any thread.
+   */
+  void requestDump(File file) {
+    mDumpFile = file;
+  }
+
+  void beginFrame() {
+    boolean wasRecording = mRecording;
+    mRecording = mEnabled;
+    if (!mRecording) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (!wasRecording) {
+      mNext = 0;
+      mCount = 0;
+      mSinceStats = 0;
+      mFrameStart = now;
+    }
+    mRing[FRAME][mNext] = now - mFrameStart;
+    for (int phase = 0; phase < PHASES; phase++) {
+      // Phases skipped by this frame take no time
+      mRing[phase][mNext] = 0;
+    }
+    mFrameStart = now;
+    mLastMark = now;
+  }
+
+  /** Ends <code>phase</code>, which started at the previous mark. */
+  void mark(int phase) {
+    if (!mRecording) {
+      return;
+    }
+    long now = System.nanoTime();
+    mRing[phase][mNext] = now - mLastMark;
+    mLastMark = now;
+  }
+
+  void endFrame() {
+    File dumpFile = mDumpFile;
+    if (dumpFile != null) {
+      mDumpFile = null;
+      dump(dumpFile);
+    }
+    if (!mRecording) {
+      return;
+    }
+    mNext = (mNext + 1) % CAPACITY;
+    if (mCount < CAPACITY) {
+      mCount++;
+    }
+    if (++mSinceStats == STATS_INTERVAL) {
+      mSinceStats = 0;
+      updateStats();
+    }
+  }
+
+  /** Draws the frame rate and the percentiles in the top left corner. */
+  void draw(Canvas canvas, Paint paint) {
+    if (!mRecording) {
+      return;
+    }
+    for (int i = 0; i < mLines.length; i++) {
+      canvas.drawText(mLines[i], 0, mLineLengths[i], LINE_HEIGHT,
+          LINE_HEIGHT * (i + 1), paint);
+    }
+  }
+
+  /** Recomputes the percentiles and the overlay text. */
+  private void updateStats() {
+    int count = mCount;
+    // The first frame has no previous one to measure from
+    int frames = count < CAPACITY ? count - 1 : count;
+    long total = 0;
+    for (int row = 0; row <= PHASES; row++) {
+      long[] times = mRing[row];
+      if (row == FRAME && count < CAPACITY) {
+        System.arraycopy(times, 1, mSorted, 0, frames);
+      } else {
+        System.arraycopy(times, 0, mSorted, 0, count);
+      }
+      int n = row == FRAME ? frames : count;
+      if (n <= 0) {
+        continue;
+      }
+      Arrays.sort(mSorted, 0, n);
+      mPercentiles[row][0] = mSorted[(n - 1) * 50 / 100];
+      mPercentiles[row][1] = mSorted[(n - 1) * 95 / 100];
+      mPercentiles[row][2] = mSorted[(n - 1) * 99 / 100];
+      if (row == FRAME) {
+        for (int i = 0; i < n; i++) {
+          total += mSorted[i];
+        }
+        mFps10 = total > 0 ? 10000000000L * n / total : 0;
+      }
+    }
+
+    int length = append(mLines[0], 0, "fps ");
+    length = appendFixed(mLines[0], length, mFps10, 10, 1);
+    length = append(mLines[0], length, "  ms p50/p95/p99");
+    mLineLengths[0] = length;
+    for (int row = 0; row <= PHASES; row++) {
+      char[] line = mLines[row + 1];
+      length = append(line, 0, row == FRAME ? "frame" : PHASE_NAMES[row]);
+      while (length < 9) {
+        line[length++] = ' ';
+      }
+      for (int p = 0; p < 3; p++) {
+        if (p > 0) {
+          line[length++] = '/';
+        }
+        // Hundredths of a millisecond
+        length = appendFixed(line, length, (mPercentiles[row][p] + 5000) / 10000,
+            100, 2);
+      }
+      mLineLengths[row + 1] = length;
+    }
+  }
+
+  private static int append(char[] line, int length, String text) {
+    text.getChars(0, text.length(), line, length);
+    return length + text.length();
+  }
+
+  /** Appends <code>value / scale</code> with <code>decimals</code> decimals. */
+  private static int appendFixed(char[] line, int length, long value,
+      int scale, int decimals) {
+    length = appendLong(line, length, value / scale);
+    line[length++] = '.';
+    long fraction = value % scale;
+    for (int d = decimals - 1; d >= 0; d--) {
+      line[length + d] = (char) ('0' + fraction % 10);
+      fraction /= 10;
+    }
+    return length + decimals;
+  }
+
+  private static int appendLong(char[] line, int length, long value) {
+    int digits = 1;
+    for (long v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    for (int d = digits - 1; d >= 0; d--) {
+      line[length + d] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return length + digits;
+  }
+
+  /**
+   * Copies the ring, oldest frame first, and writes it out on a background
+   * thread.
+   */
+  private void dump(final File file) {
+    int count = mCount;
+    int first = (mNext - count + CAPACITY) % CAPACITY;
+    int names = 0;
+    for (String name : PHASE_NAMES) {
+      names += 1 + name.length();
+    }
+    final ByteBuffer buf = ByteBuffer.allocate(16 + names + count
+        * (PHASES + 1) * 4).order(ByteOrder.LITTLE_ENDIAN);
+    buf.putInt(MAGIC).putInt(VERSION).putInt(PHASES);
+    // Names rather than indices, so traces of other builds read right
+    for (String name : PHASE_NAMES) {
+      buf.put((byte) name.length());
+      for (int i = 0; i < name.length(); i++) {
+        buf.put((byte) name.charAt(i));
+      }
+    }
+    buf.putInt(count);
+    for (int i = 0; i < count; i++) {
+      int frame = (first + i) % CAPACITY;
+      buf.putInt(clamp(mRing[FRAME][frame]));
+      for (int phase = 0; phase < PHASES; phase++) {
+        buf.putInt(clamp(mRing[phase][frame]));
+      }
+    }
+    new Thread("FrameTrace") {
+      @Override
+      public void run() {
+        try {
+          OutputStream out = new FileOutputStream(file);
+          try {
+            out.write(buf.array());
+          } finally {
+            out.close();
+          }
+          Log.i(TAG, "Wrote frame trace to " + file);
+        } catch (IOException e) {
+          Log.e(TAG, "Could not write frame trace to " + file, e);
+        }
+      }
+    }.start();
+  }
+
+  private static int clamp(long nanos) {
+    return (int) Math.min(nanos, Integer.MAX_VALUE);
+  }
+}
@@ -0,0 +1,100 @@
+package org.cruk.genesnap;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything needed to draw one frame, copied out of the game state while
+ * it is locked so the frame can be drawn without the lock.
+ *
+ * The render thread keeps two: it captures the next frame into the back
+ * one, then publishes it and draws the front one. Once published a snapshot
+ * is read only until it becomes the back one again. Selections are copied
+ * into preallocated arrays, as the drag and the trimming go on changing
+ * Selection objects in place.
+ */
+final class FrameSnapshot {
+
+  private static final int INITIAL_SELECTIONS = 16;
+
+  float canvasOffset;
+  int canvasWidth;
+  int canvasHeight;
+  long frameTimeMillis;
+  int renderMode;
+
+  /** Points being played */
+  PointStore points;
+  /** Range of points on screen, as in {@link Viewport} */
+  int first;
+  int last;
+  PointPyramid pyramid;
+
+  /** Selections on screen, the one being dragged last */
+  int selectionCount;
+  /** Whether the last selection is the one being dragged */
+  boolean selectionInProgress;
+  float[] startOffsets = new float[INITIAL_SELECTIONS];
+  float[] endOffsets = new float[INITIAL_SELECTIONS];
+  float[] heights = new float[INITIAL_SELECTIONS];
+  float[] scores = new float[INITIAL_SELECTIONS];
+  long[] fatStartTimes = new long[INITIAL_SELECTIONS];
+
+  /** Starts capturing a frame, with no selections. */
+  void capture(float canvasOffset, int canvasWidth, int canvasHeight,
+      long frameTimeMillis, int renderMode, Viewport viewport,
+      PointPyramid pyramid) {
+    this.canvasOffset = canvasOffset;
+    this.canvasWidth = canvasWidth;
+    this.canvasHeight = canvasHeight;
+    this.frameTimeMillis = frameTimeMillis;
+    this.renderMode = renderMode;
+    this.points = viewport.getPoints();
+    this.first = viewport.first();
+    this.last = viewport.last();
+    this.pyramid = pyramid;
+    selectionCount = 0;
+    selectionInProgress = false;
+  }
+
+  /** Copies the selections on screen, then the one being dragged if any. */
+  void captureSelections(List<Selection> visible, Selection inProgress) {
+    for (int i = 0; i < visible.size(); i++) {
+      add(visible.get(i));
+    }
+    if (inProgress != null) {
+      add(inProgress);
+      selectionInProgress = true;
+    }
+  }
+
+  private void add(Selection selection) {
+    int i = selectionCount;
+    if (i == startOffsets.length) {
+      int capacity = i * 2;
+      startOffsets = Arrays.copyOf(startOffsets, capacity);
+      endOffsets = Arrays.copyOf(endOffsets, capacity);
+      heights = Arrays.copyOf(heights, capacity);
+      scores = Arrays.copyOf(scores, capacity);
+      fatStartTimes = Arrays.copyOf(fatStartTimes, capacity);
+    }
+    startOffsets[i] = selection.startOffset;
+    endOffsets[i] = selection.endOffset;
+    heights[i] = selection.height;
+    scores[i] = selection.score;
+    fatStartTimes[i] = selection.fatStartTime;
+    selectionCount = i + 1;
+  }
+
+  /**
+   * Places every point on screen on the canvas and hands it to
+   * <code>sink</code>, like {@link Viewport#emit}.
+   */
+  void emit(PointSink sink) {
+    float left = canvasWidth - canvasOffset;
+    for (int i = first; i < last; i++) {
+      float value = points.value(i);
+      sink.add(left + points.scaled(i), value * canvasHeight, value);
+    }
+  }
+}
@@ -1,15 +1,18 @@
 package org.cruk.genesnap;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import static org.cruk.genesnap.Viewport.POS_CONVERSION_FACTOR;
+
+import java.io.File;
+import java.util.ArrayList;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.RectF;
-import android.os.Bundle;
+import android.graphics.Typeface;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
@@ -17,6 +20,7 @@ import android.util.Log;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
 
 public class GeneRadarView extends SurfaceView implements
     SurfaceHolder.Callback {
@@ -26,146 +30,24 @@ public class GeneRadarView extends SurfaceView implements
   private static final int ACTION_SCORE = 1;
   private static final int ACTION_FINISH = 2;
 
-  private static final float POS_CONVERSION_FACTOR = 0.00002f;
+  static class GeneRadarThread extends Thread {
+
+    /** Length of a physics step, in nanoseconds */
+    private static final long PHYSICS_STEP = 1000000000L / 120;
 
-  private static class Selection {
-    private static final float MIDDLE_SNAP_WIDTH = 0.05f;
-    private static final float FAT_ANIMATION_LENGTH = 400;
-    private static final float FAT_LINE_CANVAS_HEIGHT_PORTION = 0.07f;
-    private static final float LINE_WIDTH_FOR_SCORE = 0.028f;
+    /** Physics steps to run in one frame before skipping ahead */
+    private static final int MAX_PHYSICS_STEPS_PER_FRAME = 8;
 
-    private static float ALPHA_BASE = 0.3f;
-    private static float ALPHA_1_SCORE = 0.7f;
+    /** Delay between doStart() and the data starting to scroll */
+    private static final long START_DELAY = 100 * 1000000L;
 
-    public float startOffset;
-    public final float height;
-    public float endOffset;
-    public long fatStartTime;
-    public float score;
     /**
-     * The value of mPoinsOffset when the selection was created.
-     * Used to reduce the number of points we go through when calculating a score
-     * for this selection.
+     * Set to true to check that steady-state frames do not allocate: after
+     * a warm-up every frame that allocated objects on the render thread is
+     * logged.
      */
-    public final int pointsArrayOffset;
-
-    public Selection(float startOffset, float endOffset, float height, int pointsArrayOffset) {
-      super();
-      if (startOffset <= endOffset) {
-        this.startOffset = startOffset;
-        this.endOffset = endOffset;
-      } else {
-        this.startOffset = endOffset;
-        this.endOffset = startOffset;
-      }
-      this.pointsArrayOffset = pointsArrayOffset;
-      if (height > 0.5 - MIDDLE_SNAP_WIDTH && height < 0.5 + MIDDLE_SNAP_WIDTH) {
-        height = 0.5f;
-      }
-      this.height = height;
-      fatStartTime = -1;
-      score = 1;
-    }
-
-    private void draw(float canvasOffset, Canvas canvas, Paint originalPaint) {
-      Paint paint = new Paint(originalPaint);
-      // Main line
-      int canvasWidth = canvas.getWidth();
-      int canvasHeight = canvas.getHeight();
-      float startX = canvasWidth - canvasOffset + startOffset;
-      float endX = canvasWidth - canvasOffset + endOffset;
-      if (!(startX < canvasWidth || endX > 0)) {
-        // Off-canvas
-        return;
-      }
-      float Y = height * canvasHeight;
-      float mirrorY = (1 - height) * canvasHeight;
-      paint.setAlpha(Math.round(0xFF * Math.min(1, Math.max(ALPHA_BASE, score / ALPHA_1_SCORE))));
-      canvas.drawLine(startX, Y, endX, Y, paint);
-      if (Y != mirrorY) {
-        canvas.drawLine(startX, mirrorY, endX, mirrorY, paint);
-      }
-
-      // Fat line
-      if (fatStartTime != -1) {
-        long now = System.currentTimeMillis();
-        long elapsedTime = now - fatStartTime;
-        if (elapsedTime > FAT_ANIMATION_LENGTH) {
-          // We are done animating
-          fatStartTime = -1;
-        } else {
-          double animationPortion = 1 - Math.pow(1 - elapsedTime / FAT_ANIMATION_LENGTH, 2);
-          Paint fatPaint = new Paint(originalPaint);
-          fatPaint.setStrokeWidth((float) (paint.getStrokeWidth() + canvasWidth * FAT_LINE_CANVAS_HEIGHT_PORTION * animationPortion));
-          fatPaint.setAlpha((int) (1 - (255 * animationPortion)));
-          canvas.drawLine(startX, Y, endX, Y, fatPaint);
-          if (Y != mirrorY) {
-            canvas.drawLine(startX, mirrorY, endX, mirrorY, fatPaint);
-          }
-        }
-      }
-    }
-
-    public int calculateScore(float[] points) {
-      int intersectCount = 0;
-      for (int i = pointsArrayOffset; i < points.length - 1; i += 2) {
-        float pos = points[i] * POS_CONVERSION_FACTOR;
-        float value = points[i + 1];
-        if (pos < startOffset) {
-          continue;
-        }
-        if (pos > endOffset) {
-          break;
-        }
-        if (Math.abs(value - height) < LINE_WIDTH_FOR_SCORE) {
-          intersectCount++;
-        }
-      }
-      score = intersectCount / length();
-      return intersectCount;
-    }
-
-    public float length() {
-      return (endOffset - startOffset);
-    }
-
-    public Selection intersectInPlace(Selection lineThatLoses) {
-      if (lineThatLoses.startOffset >= endOffset || lineThatLoses.endOffset <= startOffset) {
-        // No intersection
-        return null;
-      }
-//      Log.v(TAG, "intersectInPlace: (" + startOffset + ", " + endOffset + ") (" + lineThatLoses.startOffset + ", " + lineThatLoses.endOffset + ")");
-      if (lineThatLoses.startOffset < startOffset && lineThatLoses.endOffset < endOffset) {
-//        Log.v(TAG, "Case 1");
-        lineThatLoses.endOffset = startOffset;
-        return null;
-      }
-      if (lineThatLoses.startOffset > startOffset && lineThatLoses.endOffset > endOffset) {
-//        Log.v(TAG, "Case 2");
-        lineThatLoses.startOffset = endOffset;
-        return null;
-      }
-      if (lineThatLoses.startOffset > startOffset && lineThatLoses.endOffset < endOffset) {
-//        Log.v(TAG, "Case 3");
-//        Log.v(TAG, "killing the line");
-        // The line "dissapears"
-        lineThatLoses.startOffset = endOffset;
-        lineThatLoses.endOffset = endOffset;
-        return null;
-      } else {
-//        Log.v(TAG, "Case 4");
-        // Split the line
-        Selection rightRemainder = new Selection(
-            endOffset, lineThatLoses.endOffset, lineThatLoses.height, pointsArrayOffset);
-        lineThatLoses.endOffset = startOffset;
-        return rightRemainder;
-      }
-    }
-  }
-
-  static class GeneRadarThread extends Thread {
-
-    private static final int TIME_MULTIPLIER = 120;
+    private static final boolean DEBUG_ALLOCATIONS = false;
+    private static final int ALLOCATION_WARMUP_FRAMES = 120;
 
 
     private static final int STATE_READY = 0;
@@ -174,6 +56,17 @@ public class GeneRadarView extends SurfaceView implements
     private static final int[] POINT_RGB_EDGE = {0xFF, 0, 0};
     private static final int[] POINT_RGB_MIDDLE = {0, 0, 0xFF};
 
+    /** Draw every point with its own colour and drawPoint call */
+    static final int RENDER_POINTS = 0;
+    /** Draw points in colour buckets, one drawPoints call per bucket */
+    static final int RENDER_BATCHED = 1;
+    /** Blit pre-rendered tiles of the point cloud */
+    static final int RENDER_TILES = 2;
+    /** Draw one point per occupied screen cell from the PointPyramid */
+    static final int RENDER_PYRAMID = 3;
+    /** Draw points into a pixel buffer in Java, then blit it in one call */
+    static final int RENDER_RASTER = 4;
+
     /**
      * Current height of the surface/canvas.
      *
@@ -188,12 +81,29 @@ public class GeneRadarView extends SurfaceView implements
      */
     private int mCanvasWidth = 1;
 
-    /** Used to figure out elapsed time between frames */
-    private long mLastTime;
-
+    /** System.nanoTime() at which the data starts scrolling */
     private long mStartTime;
+
+    /** Simulated time since mStartTime, a whole number of physics steps */
+    private long mPhysicsTime;
+
+    /** Canvas offset at the previous and the current physics step */
+    private float mPreviousStepOffset;
+    private float mStepOffset;
+
+    /** Canvas offset interpolated between physics steps for drawing */
     private float mCanvasOffset;
 
+    /** Frame time in milliseconds, for the selection animations */
+    private long mFrameTimeMillis;
+
+    /** Frame period of the display, and the frames the loop missed */
+    private final FrameClock mFrameClock;
+
+    /** Times the phases of every frame while enabled */
+    private final FrameProfiler mProfiler = new FrameProfiler();
+    private final Paint mProfilerPaint;
+
     /** Message handler used by thread to interact with TextView */
     private Handler mHandler;
 
@@ -216,25 +126,94 @@ public class GeneRadarView extends SurfaceView implements
     /** Paint to draw individual points in the plot */
     private Paint mPointPaint;
 
+    /** How points are drawn, one of the RENDER_ constants */
+    private int mRenderMode = RENDER_TILES;
+
+    /** Colour buckets for RENDER_BATCHED */
+    private final PointBatcher mPointBatcher = new PointBatcher(
+        POINT_RGB_MIDDLE, POINT_RGB_EDGE);
+
+    /** Pre-rendered strips of the point cloud for RENDER_TILES */
+    private final TileCache mTileCache = new TileCache(POINT_RGB_MIDDLE,
+        POINT_RGB_EDGE);
+
+    /** Pixel buffer for RENDER_RASTER, and the bitmap it is blitted from */
+    private final PointRaster mRaster;
+    private Bitmap mRasterBitmap;
+
     private Paint mBackgroundPaint;
 
     private Paint mSelectionPaint;
     private Paint mActiveSelectionPaint;
 
+    /** Scratch paints for drawSelection, so drawing does not allocate */
+    private final Paint mSelectionDrawPaint = new Paint();
+    private final Paint mSelectionFatPaint = new Paint();
+
     /**
      * Points to draw on the canvas as paris of float. X followed by Y
      * coordinate.
      */
-    private float[] mPoints;
+    private PointStore mPoints;
+
+    /** Level of detail summary of mPoints, null while there are none */
+    private PointPyramid mPyramid;
+
+    /** Reference segmentation of mPoints, null until it is known */
+    private Segmentation mSegmentation;
 
-    /** Selections the user has entered already */
-    private List<Selection> mSelections;
+    /** Whole genome being played, or null when playing mPoints alone */
+    private GenomeStream mGenome;
+    /** Window of mGenome in mPoints, null until the first one is built */
+    private GenomeStream.Window mWindow;
 
-    /** Maintained while the user is dragging and creating a new Selection */
-    private Selection mSelectionInProgress;
+    /** Lines the user has entered or is dragging, and their score */
+    private final SelectionBoard mSelections = new SelectionBoard();
 
+    /** Scratch list of the selections on screen */
+    private final ArrayList<Selection> mVisibleSelections = new ArrayList<Selection>();
+
+    /**
+     * Frame being drawn and frame being captured, swapped by
+     * publishSnapshot
+     */
+    private FrameSnapshot mFrontSnapshot = new FrameSnapshot();
+    private FrameSnapshot mBackSnapshot = new FrameSnapshot();
+
+    /** Set when the tile cache must be invalidated by the render thread */
+    private boolean mTilesStale;
+
+    /** Index of the first point on screen, same as mViewport.first() */
     private int mPointsOffset = 0;
 
+    /** Range of points on screen, updated once per frame by updatePhysics */
+    private final Viewport mViewport = new Viewport();
+
+    /** Last score sent to the handler, -1 to force sending the next one */
+    private int mReportedScore = -1;
+
+    /** Touch samples from the UI thread, applied at the start of a frame */
+    private final TouchRing mTouches = new TouchRing();
+    private final TouchRing.Consumer mTouchConsumer = new TouchRing.Consumer() {
+      @Override
+      public void onTouch(int action, float x, float y, long time) {
+        applyTouch(action, x, y, time);
+      }
+    };
+
+    /** Where the touch samples of rounds are recorded, null to not record */
+    private SessionRecorder mSessionRecorder;
+    /** Dataset id written to the recording of a round */
+    private int mSessionDatasetId;
+
+    /** Where entered selections are recorded, null to not record them */
+    private SelectionLog mSelectionLog;
+    /** Chromosome code and genomic position of pos 0 of mPoints */
+    private int mChromosome;
+    private int mBasePosition;
+    /** Wall clock time the round started, identifies it in the log */
+    private long mRoundStartMillis;
+
     public GeneRadarThread(SurfaceHolder surfaceHolder, Context context,
         Handler handler) {
       // get handles to some important objects
@@ -269,6 +248,8 @@ public class GeneRadarView extends SurfaceView implements
       // mPointPaint.setAntiAlias(true);
       mPointPaint.setStrokeWidth(4);
       mPointPaint.setColor(res.getColor(android.R.color.holo_blue_light));
+      mRaster = new PointRaster(POINT_RGB_MIDDLE, POINT_RGB_EDGE,
+          (int) mPointPaint.getStrokeWidth());
 
       mBackgroundPaint = new Paint();
       mBackgroundPaint.setAntiAlias(true);
@@ -284,32 +265,96 @@ public class GeneRadarView extends SurfaceView implements
 
       mScratchRect = new RectF(0, 0, 0, 0);
 
-      mSelections = new LinkedList<Selection>();
+      mProfilerPaint = new Paint();
+      mProfilerPaint.setAntiAlias(true);
+      mProfilerPaint.setTextSize(18);
+      mProfilerPaint.setTypeface(Typeface.MONOSPACE);
+      mProfilerPaint.setARGB(0xFF, 0x00, 0x80, 0x00);
+
+      WindowManager windowManager = (WindowManager) context
+          .getSystemService(Context.WINDOW_SERVICE);
+      mFrameClock = new FrameClock(windowManager.getDefaultDisplay()
+          .getRefreshRate());
     }
 
     @Override
     public void run() {
+      if (DEBUG_ALLOCATIONS) {
+        Debug.startAllocCounting();
+      }
+      long frame = 0;
       while (mRun) {
+        if (DEBUG_ALLOCATIONS) {
+          Debug.resetThreadAllocCount();
+        }
+        mProfiler.beginFrame();
+        boolean draw;
+        // Only the simulation holds the lock, the frame is drawn from the
+        // snapshot it publishes
+        synchronized (mSurfaceHolder) {
+          mProfiler.mark(FrameProfiler.PHASE_SYNC);
+          if (mMode == STATE_RUNNING) {
+            updatePhysics(System.nanoTime());
+          }
+          mProfiler.mark(FrameProfiler.PHASE_PHYSICS);
+          mTouches.drain(mTouchConsumer);
+          mProfiler.mark(FrameProfiler.PHASE_INPUT);
+          draw = mRun && mMode == STATE_RUNNING;
+          if (draw) {
+            publishSnapshot();
+          }
+        }
         Canvas c = null;
+        long posted = 0;
         try {
           c = mSurfaceHolder.lockCanvas(null);
-          synchronized (mSurfaceHolder) {
-            if (mMode == STATE_RUNNING) {
-              updatePhysics();
-            }
-            if (mRun && mMode == STATE_RUNNING) {
-              doDraw(c);
-            }
+          mProfiler.mark(FrameProfiler.PHASE_LOCK);
+          if (draw && c != null) {
+            doDraw(c, mFrontSnapshot);
           }
         } finally {
           // do this in a finally so that if an exception is thrown
           // during the above, we don't leave the Surface in an
           // inconsistent state
           if (c != null) {
+            // Blocks until the display takes the buffer, which paces the loop
             mSurfaceHolder.unlockCanvasAndPost(c);
+            posted = System.nanoTime();
+          }
+        }
+        mProfiler.mark(FrameProfiler.PHASE_POST);
+        mProfiler.endFrame();
+        if (DEBUG_ALLOCATIONS) {
+          checkAllocations(frame);
+        }
+        frame++;
+        if (posted != 0) {
+          mFrameClock.framePosted(posted);
+        } else {
+          try {
+            mFrameClock.waitForSurface();
+          } catch (InterruptedException e) {
+            break;
           }
         }
       }
+      if (DEBUG_ALLOCATIONS) {
+        Debug.stopAllocCounting();
+      }
+      mTileCache.quit();
+      Log.d(TAG, "Render thread done. frames: " + mFrameClock.getFrames()
+          + " missed: " + mFrameClock.getMissedFrames());
+    }
+
+    /**
+     * Logs the objects allocated by the render thread during a frame, once
+     * the first frames have warmed up caches and buffers.
+     */
+    private static void checkAllocations(long frame) {
+      int allocations = Debug.getThreadAllocCount();
+      if (frame >= ALLOCATION_WARMUP_FRAMES && allocations > 0) {
+        Log.w(TAG, "Frame " + frame + " allocated " + allocations + " objects");
+      }
     }
 
     /**
@@ -333,6 +378,11 @@ public class GeneRadarView extends SurfaceView implements
         // int oldHeight = mCanvasHeight;
         mCanvasWidth = width;
         mCanvasHeight = height;
+        mViewport.setCanvasWidth(width);
+        mTilesStale = true;
+        if (mSessionRecorder != null) {
+          mSessionRecorder.setSurfaceSize(width, height);
+        }
 
         // for (int i = mPointsOffset; i < mPoints.length; i++) {
         // mPoints[i] = (mPoints[i] / oldWidth) * width;
@@ -347,45 +397,56 @@ public class GeneRadarView extends SurfaceView implements
     }
 
     /**
-     * Figures the lander state (x, y, fuel, ...) based on the passage of
-     * realtime. Does not invalidate(). Called at the start of draw(). Detects
+     * Advances the scroll offset to <code>now</code> in fixed physics steps
+     * and interpolates the offset to draw between the last two steps. Detects
      * the end-of-game and sets the UI to the next state.
      */
-    private void updatePhysics() {
-      long now = System.currentTimeMillis();
-
-      // Do nothing if mLastTime is in the future.
-      // This allows the game-start to delay the start of the physics
-      // by 100ms or whatever.
-      if (mLastTime > now)
+    private void updatePhysics(long now) {
+      mFrameTimeMillis = now / 1000000L;
+
+      // Do nothing until the start time. This allows the game-start to delay
+      // the start of the physics by 100ms or whatever.
+      if (mStartTime > now) {
+        if (mGenome != null) {
+          streamGenome();
+        }
+        mViewport.update(mCanvasOffset);
         return;
+      }
 
-      float elapsedTimeSinceStart = (now - mStartTime) / 1000.0f;
-      mCanvasOffset = elapsedTimeSinceStart * TIME_MULTIPLIER;
-
-      float x;
-      for (int i = mPointsOffset; i < mPoints.length - 1; i += 2) {
-        x = mCanvasWidth - mCanvasOffset + mPoints[i] * POS_CONVERSION_FACTOR;
-        if (x < 0) {
-          mPointsOffset += 2;
-        } else {
+      long elapsed = now - mStartTime;
+      int steps = 0;
+      while (mPhysicsTime + PHYSICS_STEP <= elapsed) {
+        if (++steps > MAX_PHYSICS_STEPS_PER_FRAME) {
+          // Too far behind (the thread was starved or paused): skip ahead
+          mPhysicsTime = elapsed - elapsed % PHYSICS_STEP;
+          mPreviousStepOffset = Viewport.offsetAt(mPhysicsTime - PHYSICS_STEP);
+          mStepOffset = Viewport.offsetAt(mPhysicsTime);
           break;
         }
+        mPhysicsTime += PHYSICS_STEP;
+        mPreviousStepOffset = mStepOffset;
+        mStepOffset = Viewport.offsetAt(mPhysicsTime);
+      }
+      float alpha = (float) (elapsed - mPhysicsTime) / PHYSICS_STEP;
+      mCanvasOffset = mPreviousStepOffset + (mStepOffset - mPreviousStepOffset) * alpha;
+
+      if (mGenome != null) {
+        streamGenome();
       }
+      mViewport.update(mCanvasOffset);
+      mPointsOffset = mViewport.first();
 
-      if (mPointsOffset > mPoints.length - 1) {
+      boolean finished = mGenome != null
+          ? mCanvasOffset - mCanvasWidth > mGenome.getEndOffset()
+          : mViewport.isExhausted();
+      if (finished) {
         // We ran out of stuff to show
         setRunning(false);
         mMode = STATE_READY;
-        Message msg = mHandler.obtainMessage();
-        Bundle b = new Bundle();
-        b.putInt("action", ACTION_FINISH);
-        msg.setData(b);
-        mHandler.sendMessage(msg);
+        mHandler.sendEmptyMessage(ACTION_FINISH);
       }
 
-      mLastTime = now;
-
       // mRotating -- update heading
       // if (mRotating != 0) {
       // mHeading += mRotating * (PHYS_SLEW_SEC * elapsed);
@@ -479,43 +540,143 @@ public class GeneRadarView extends SurfaceView implements
     }
 
     /**
-     * Draws the ship, fuel/speed bars, and background to the provided Canvas.
+     * Swaps in the window of the genome built since the last frame, and asks
+     * for a new one when the screen gets within a screen of the right end of
+     * the window or leaves more than two screens of it behind. Called with
+     * the lock held.
+     */
+    private void streamGenome() {
+      GenomeStream.Window window = mGenome.poll();
+      if (window != null) {
+        mWindow = window;
+        mPoints = window.points;
+        mPyramid = window.pyramid;
+        mViewport.setPoints(window.points);
+        // Tiles are keyed by canvas offset, those of the overlap stay right
+        mTileCache.setWindow(window.points, window.pyramid, window.from,
+            window.to);
+      }
+      float keepFrom = keepFrom();
+      float needed = Math.min(mCanvasOffset + mCanvasWidth, mGenome.getEndOffset());
+      if (mWindow == null || mWindow.to < needed || keepFrom < mWindow.from
+          || keepFrom - mWindow.from > 2 * mCanvasWidth) {
+        mGenome.request(keepFrom, mCanvasOffset + 3 * mCanvasWidth);
+      }
+    }
+
+    /**
+     * Canvas offset left of which points are no longer needed: the left edge
+     * of the screen, or the start of a selection still on it if further left,
+     * as a selection can be trimmed and rescored as long as it is on screen.
      */
-    private void doDraw(Canvas canvas) {
+    private float keepFrom() {
+      float keepFrom = mCanvasOffset - mCanvasWidth;
+      Selection inProgress = mSelections.getSelectionInProgress();
+      if (inProgress != null) {
+        keepFrom = Math.min(keepFrom, inProgress.startOffset);
+      }
+      mSelections.collectVisible(keepFrom, mCanvasOffset, mVisibleSelections);
+      for (int i = 0; i < mVisibleSelections.size(); i++) {
+        keepFrom = Math.min(keepFrom, mVisibleSelections.get(i).startOffset);
+      }
+      mVisibleSelections.clear();
+      return keepFrom;
+    }
+
+    /**
+     * Rescores the selections, then captures what the next frame draws into
+     * the back snapshot and swaps it to the front. Called with the lock held.
+     */
+    private void publishSnapshot() {
+      if (mTilesStale && mPoints != null) {
+        float from = Float.NEGATIVE_INFINITY;
+        float to = Float.POSITIVE_INFINITY;
+        if (mGenome != null) {
+          // Only the offsets the window holds all the points of
+          from = mWindow != null ? mWindow.from : 0;
+          to = mWindow != null ? mWindow.to : 0;
+        }
+        mTileCache.invalidate(mPoints, mPyramid, from, to, mCanvasWidth,
+            mCanvasHeight);
+      }
+      mTilesStale = false;
+
+      // Only rescore the selections that changed since the last frame
+      int score = mSelections.rescore(mViewport);
+      if (score != mReportedScore) {
+        mReportedScore = score;
+        // Pooled message with the score as an argument, no Bundle to allocate
+        mHandler.sendMessage(mHandler.obtainMessage(ACTION_SCORE, score, 0));
+      }
+      mProfiler.mark(FrameProfiler.PHASE_SCORE);
+
+      FrameSnapshot snapshot = mBackSnapshot;
+      snapshot.capture(mCanvasOffset, mCanvasWidth, mCanvasHeight,
+          mFrameTimeMillis, mRenderMode, mViewport, mPyramid);
+      // Only the selections on screen
+      mSelections.collectVisible(mCanvasOffset - mCanvasWidth,
+          mCanvasOffset, mVisibleSelections);
+      for (int i = 0; i < mVisibleSelections.size(); i++) {
+        endFatAnimation(mVisibleSelections.get(i));
+      }
+      snapshot.captureSelections(mVisibleSelections,
+          mSelections.getSelectionInProgress());
+      mVisibleSelections.clear();
+      mBackSnapshot = mFrontSnapshot;
+      mFrontSnapshot = snapshot;
+      mProfiler.mark(FrameProfiler.PHASE_SNAPSHOT);
+    }
+
+    /** Stops the snap animation of a selection once it is over. */
+    private void endFatAnimation(Selection selection) {
+      if (selection.fatStartTime != -1
+          && mFrameTimeMillis - selection.fatStartTime > Selection.FAT_ANIMATION_LENGTH) {
+        selection.fatStartTime = -1;
+      }
+    }
+
+    /**
+     * Draws a frame from a snapshot, without the lock. Only the render
+     * thread uses the tile cache, the paints and the point batcher.
+     */
+    private void doDraw(Canvas canvas, FrameSnapshot frame) {
       // Draw the background image. Operations on the Canvas accumulate
       // so this is like clearing the screen.
       // canvas.drawBitmap(mBackgroundImage, 0, 0, null);
       canvas.drawPaint(mBackgroundPaint);
 
-      float x, y;
-      for (int i = mPointsOffset; i < mPoints.length - 1; i += 2) {
-        x = mCanvasWidth - mCanvasOffset + mPoints[i] * POS_CONVERSION_FACTOR;
-        y = mPoints[i + 1] * mCanvasHeight;
-        if (x > mCanvasWidth) {
-          break;
+      switch (frame.renderMode) {
+      case RENDER_BATCHED:
+        drawPointsBatched(canvas, frame);
+        break;
+      case RENDER_TILES:
+        mTileCache.update(frame.canvasOffset);
+        mTileCache.draw(canvas, frame.canvasOffset, mPointPaint);
+        break;
+      case RENDER_PYRAMID:
+        if (frame.pyramid != null) {
+          drawPointsPyramid(canvas, frame);
+        } else {
+          drawPointsBatched(canvas, frame);
         }
-        double colorMultiplier = Math.abs(mPoints[i + 1] - 0.5) / 0.5;
-        mPointPaint.setARGB(
-            0xFF,
-            Math.abs((int) (POINT_RGB_MIDDLE[0] + (POINT_RGB_EDGE[0] - POINT_RGB_MIDDLE[0]) * colorMultiplier)),
-            Math.abs((int) (POINT_RGB_MIDDLE[1] + (POINT_RGB_EDGE[1] - POINT_RGB_MIDDLE[1]) * colorMultiplier)),
-            Math.abs((int) (POINT_RGB_MIDDLE[2] + (POINT_RGB_EDGE[2] - POINT_RGB_MIDDLE[2]) * colorMultiplier)));
-        canvas.drawPoint(x, y, mPointPaint);
+        break;
+      case RENDER_RASTER:
+        drawPointsRaster(canvas, frame);
+        break;
+      default:
+        drawPoints(canvas, frame);
+        break;
       }
 
-      int score = 0;
-      for (int i = 0; i < mSelections.size(); i++) {
-        Selection selection = mSelections.get(i);
-        score += selection.calculateScore(mPoints);
-        selection.draw(mCanvasOffset, canvas,
-            selection == mSelectionInProgress ? mActiveSelectionPaint : mSelectionPaint);
+      mProfiler.mark(FrameProfiler.PHASE_POINTS);
+
+      int count = frame.selectionCount;
+      for (int i = 0; i < count; i++) {
+        boolean inProgress = frame.selectionInProgress && i == count - 1;
+        drawSelection(frame, i, canvas, inProgress ? mActiveSelectionPaint
+            : mSelectionPaint);
       }
-      Message msg = mHandler.obtainMessage();
-      Bundle b = new Bundle();
-      b.putInt("action", ACTION_SCORE);
-      b.putInt("score", score);
-      msg.setData(b);
-      mHandler.sendMessage(msg);
+      mProfiler.mark(FrameProfiler.PHASE_SELECTIONS);
 
       // Draw the fuel gauge
       // int UI_BAR = 100;
@@ -565,11 +726,205 @@ public class GeneRadarView extends SurfaceView implements
       // + mLanderHeight);
       // mLanderImage.draw(canvas);
       // }
+      mProfiler.draw(canvas, mProfilerPaint);
+      mProfiler.mark(FrameProfiler.PHASE_OVERLAY);
       canvas.restore();
     }
 
-    public void setPoints(float[] points) {
-      mPoints = points;
+    /**
+     * Draws selection <code>i</code> of a frame and its mirror image, plus
+     * the snap animation if it is running. Works on the preallocated scratch
+     * paints.
+     */
+    private void drawSelection(FrameSnapshot frame, int i, Canvas canvas,
+        Paint originalPaint) {
+      Paint paint = mSelectionDrawPaint;
+      paint.set(originalPaint);
+      // Main line
+      int canvasWidth = frame.canvasWidth;
+      int canvasHeight = frame.canvasHeight;
+      float startX = canvasWidth - frame.canvasOffset + frame.startOffsets[i];
+      float endX = canvasWidth - frame.canvasOffset + frame.endOffsets[i];
+      float height = frame.heights[i];
+      float Y = height * canvasHeight;
+      float mirrorY = (1 - height) * canvasHeight;
+      paint.setAlpha(Math.round(0xFF * Math.min(1, Math.max(Selection.ALPHA_BASE,
+          frame.scores[i] / Selection.ALPHA_1_SCORE))));
+      canvas.drawLine(startX, Y, endX, Y, paint);
+      if (Y != mirrorY) {
+        canvas.drawLine(startX, mirrorY, endX, mirrorY, paint);
+      }
+
+      // Fat line
+      long fatStartTime = frame.fatStartTimes[i];
+      long elapsedTime = frame.frameTimeMillis - fatStartTime;
+      if (fatStartTime != -1 && elapsedTime <= Selection.FAT_ANIMATION_LENGTH) {
+        double animationPortion = 1 - Math.pow(1 - elapsedTime / Selection.FAT_ANIMATION_LENGTH, 2);
+        Paint fatPaint = mSelectionFatPaint;
+        fatPaint.set(originalPaint);
+        fatPaint.setStrokeWidth((float) (paint.getStrokeWidth() + canvasWidth * Selection.FAT_LINE_CANVAS_HEIGHT_PORTION * animationPortion));
+        fatPaint.setAlpha((int) (1 - (255 * animationPortion)));
+        canvas.drawLine(startX, Y, endX, Y, fatPaint);
+        if (Y != mirrorY) {
+          canvas.drawLine(startX, mirrorY, endX, mirrorY, fatPaint);
+        }
+      }
+    }
+
+    /** Draws each visible point with its own paint colour and call. */
+    private void drawPoints(Canvas canvas, FrameSnapshot frame) {
+      float x, y;
+      PointStore points = frame.points;
+      int last = frame.last;
+      for (int i = frame.first; i < last; i++) {
+        float value = points.value(i);
+        x = frame.canvasWidth - frame.canvasOffset + points.scaled(i);
+        y = value * frame.canvasHeight;
+        double colorMultiplier = Math.abs(value - 0.5) / 0.5;
+        mPointPaint.setARGB(
+            0xFF,
+            Math.abs((int) (POINT_RGB_MIDDLE[0] + (POINT_RGB_EDGE[0] - POINT_RGB_MIDDLE[0]) * colorMultiplier)),
+            Math.abs((int) (POINT_RGB_MIDDLE[1] + (POINT_RGB_EDGE[1] - POINT_RGB_MIDDLE[1]) * colorMultiplier)),
+            Math.abs((int) (POINT_RGB_MIDDLE[2] + (POINT_RGB_EDGE[2] - POINT_RGB_MIDDLE[2]) * colorMultiplier)));
+        canvas.drawPoint(x, y, mPointPaint);
+      }
+    }
+
+    /** Draws the visible points with one drawPoints call per colour. */
+    private void drawPointsBatched(Canvas canvas, FrameSnapshot frame) {
+      frame.emit(mPointBatcher);
+      mPointBatcher.flush(canvas, mPointPaint);
+    }
+
+    /**
+     * Draws one point per occupied cell of the screen, cells being as big as
+     * a point.
+     */
+    private void drawPointsPyramid(Canvas canvas, FrameSnapshot frame) {
+      frame.pyramid.draw(mPointBatcher, frame.canvasOffset - frame.canvasWidth,
+          frame.canvasOffset, 0, frame.canvasHeight, mPointPaint.getStrokeWidth());
+      mPointBatcher.flush(canvas, mPointPaint);
+    }
+
+    /**
+     * Draws the visible points into the pixel buffer, background included,
+     * and blits it. The bitmap is only reallocated when the surface size
+     * changes.
+     */
+    private void drawPointsRaster(Canvas canvas, FrameSnapshot frame) {
+      PointRaster raster = mRaster;
+      raster.resize(frame.canvasWidth, frame.canvasHeight);
+      raster.clear(mBackgroundPaint.getColor());
+      frame.emit(raster);
+      int width = raster.getWidth();
+      int height = raster.getHeight();
+      if (mRasterBitmap == null || mRasterBitmap.getWidth() != width
+          || mRasterBitmap.getHeight() != height) {
+        mRasterBitmap = Bitmap.createBitmap(width, height,
+            Bitmap.Config.ARGB_8888);
+      }
+      mRasterBitmap.setPixels(raster.getPixels(), 0, width, 0, 0, width,
+          height);
+      canvas.drawBitmap(mRasterBitmap, 0, 0, null);
+    }
+
+    /**
+     * Chooses how points are drawn.
+     *
+     * @param renderMode
+     *          one of the RENDER_ constants
+     */
+    public void setRenderMode(int renderMode) {
+      synchronized (mSurfaceHolder) {
+        mRenderMode = renderMode;
+      }
+    }
+
+    /**
+     * Turns the frame profiler and its overlay on or off. Can be called from
+     * any thread.
+     */
+    public void setProfiling(boolean enabled) {
+      mProfiler.setEnabled(enabled);
+    }
+
+    /**
+     * Writes the frame times recorded by the profiler to <code>file</code>,
+     * at the end of the next frame.
+     */
+    public void dumpFrameTrace(File file) {
+      mProfiler.requestDump(file);
+    }
+
+    /**
+     * Plays <code>points</code>, drawn through <code>pyramid</code>, built
+     * with them when the dataset was loaded.
+     */
+    public void setPoints(PointStore points, PointPyramid pyramid) {
+      synchronized (mSurfaceHolder) {
+        mGenome = null;
+        mWindow = null;
+        mPoints = points;
+        mPyramid = pyramid;
+        mSegmentation = null;
+        mViewport.setPoints(points);
+        mTilesStale = true;
+      }
+    }
+
+    /**
+     * Plays all the chromosomes of <code>genome</code> in a row instead of
+     * one set of points. Windows of it are loaded while the round goes on.
+     */
+    public void setGenome(GenomeStream genome) {
+      synchronized (mSurfaceHolder) {
+        // Windows of the last round through it are of no use to this one
+        genome.reset();
+        mGenome = genome;
+        mWindow = null;
+        mPoints = PointStore.EMPTY;
+        mPyramid = null;
+        mSegmentation = null;
+        mViewport.setPoints(mPoints);
+        mTilesStale = true;
+      }
+    }
+
+    /**
+     * Records the selections entered from now on to <code>log</code>, with
+     * positions on <code>chromosome</code> counted from
+     * <code>basePosition</code>. When playing a whole genome the chromosome
+     * and position are those of the start of each selection instead.
+     */
+    public void setSelectionLog(SelectionLog log, int chromosome,
+        int basePosition) {
+      synchronized (mSurfaceHolder) {
+        mSelectionLog = log;
+        mChromosome = chromosome;
+        mBasePosition = basePosition;
+      }
+    }
+
+    /**
+     * Records the touch input of the rounds started from now on to
+     * <code>recorder</code>, for the dataset <code>datasetId</code>. Call
+     * from the UI thread, like {@link #doTouchEvent}.
+     */
+    public void setSessionRecorder(SessionRecorder recorder, int datasetId) {
+      mSessionRecorder = recorder;
+      mSessionDatasetId = datasetId;
+    }
+
+    /**
+     * Sets the reference segmentation of <code>points</code>, ignored if
+     * other points are being played by now. Can be called from any thread.
+     */
+    public void setSegmentation(PointStore points, Segmentation segmentation) {
+      synchronized (mSurfaceHolder) {
+        if (mPoints == points) {
+          mSegmentation = segmentation;
+        }
+      }
     }
 
     /**
@@ -577,72 +932,121 @@ public class GeneRadarView extends SurfaceView implements
      */
     public void doStart() {
       synchronized (mSurfaceHolder) {
-        mLastTime = System.currentTimeMillis() + 100;
-        mStartTime = mLastTime;
+        mStartTime = System.nanoTime() + START_DELAY;
+        mPhysicsTime = 0;
+        mPreviousStepOffset = 0;
+        mStepOffset = 0;
         mMode = STATE_RUNNING;
         mCanvasOffset = 0;
         mSelections.clear();
-        mSelectionInProgress = null;
         mPointsOffset = 0;
+        mViewport.seek();
+        mReportedScore = -1;
+        mRoundStartMillis = System.currentTimeMillis();
+        if (mSessionRecorder != null) {
+          // MotionEvent times are in the same uptime base as nanoTime
+          mSessionRecorder.start(mSessionDatasetId,
+              (int) mFrameClock.getFramePeriod(), mStartTime);
+          mSessionRecorder.setSurfaceSize(mCanvasWidth, mCanvasHeight);
+        }
       }
     }
 
+    /** Genomic position at a canvas offset of the points being played. */
+    private int genomicPosition(float offset) {
+      return (int) Math.round(mBasePosition + offset / (double) POS_CONVERSION_FACTOR);
+    }
+
+    /**
+     * Queues the samples of a touch event for the render thread, which
+     * applies them at its next frame. Called on the UI thread, never blocks.
+     */
     public boolean doTouchEvent(MotionEvent event) {
-//       Log.d(TAG, "doTouchEvent. event: " + event.getAction());
-      float x = event.getX();
-      float y = event.getY() - 10;
-      if (x < 0 || y < 0 || x > mCanvasWidth || y > mCanvasHeight) {
-//        return false;
-      }
-      float offset = mCanvasOffset - mCanvasWidth + x;
-      float height = y / mCanvasHeight;
-      // Log.d(TAG, "doTouchEvent. offset: " + offset + " height: " + height);
+      int action;
       switch (event.getAction()) {
       case MotionEvent.ACTION_DOWN:
-        // Log.d(TAG, "doTouchEvent. ACTION_DOWN");
-        mSelectionInProgress = new Selection(offset, offset, height, mPointsOffset);
-        mSelections.add(mSelectionInProgress);
+        action = TouchRing.ACTION_DOWN;
         break;
       case MotionEvent.ACTION_MOVE:
-        // Log.d(TAG, "doTouchEvent. ACTION_MOVE");
-        mSelectionInProgress.endOffset = offset;
-        Selection rightRemainder = null;
-        for (Iterator<Selection> iterSelection = mSelections.iterator(); iterSelection.hasNext();) {
-          Selection selection = (Selection) iterSelection.next();
-          if (selection != mSelectionInProgress) {
-            Selection tmpRemainder = mSelectionInProgress.intersectInPlace(selection);
-            if (tmpRemainder != null) {
-              if (rightRemainder != null)
-                Log.w(TAG, "Two right remainders!!");
-              rightRemainder = tmpRemainder;
-            }
-            if (selection.length() == 0) {
-              iterSelection.remove();
-            }
-          }
-        }
-        if (rightRemainder != null) {
-          mSelections.add(rightRemainder);
-        }
+        action = TouchRing.ACTION_MOVE;
         break;
       case MotionEvent.ACTION_UP:
-//         Log.d(TAG, "doTouchEvent. ACTION_UP");
-        mSelectionInProgress.endOffset = offset;
-        mSelectionInProgress.fatStartTime = System.currentTimeMillis();
-        int score = mSelectionInProgress.calculateScore(mPoints);
-        float length = mSelectionInProgress.length();
-        Log.d(TAG, "new line score : " + score);
-        Log.d(TAG, "new line length: " + length);
-        Log.d(TAG, "new line ration: " + score / length);
-
-        mSelectionInProgress = null;
+      case MotionEvent.ACTION_CANCEL:
+        // A cancelled drag ends where the finger last was
+        action = TouchRing.ACTION_UP;
         break;
       default:
         return false;
       }
+      // Moves batched into this event since the previous one, oldest first
+      for (int h = 0; h < event.getHistorySize(); h++) {
+        addTouch(TouchRing.ACTION_MOVE, event.getHistoricalX(h),
+            event.getHistoricalY(h), event.getHistoricalEventTime(h));
+      }
+      if (!addTouch(action, event.getX(), event.getY(), event.getEventTime())) {
+        Log.w(TAG, "Touch ring full, " + mTouches.getDropped() + " samples dropped");
+      }
       return true;
     }
 
+    /**
+     * Queues a touch sample, and records it if it was not dropped so a
+     * replay sees the same samples as the render thread.
+     */
+    private boolean addTouch(int action, float x, float y, long time) {
+      if (!mTouches.add(action, x, y, time)) {
+        return false;
+      }
+      if (mSessionRecorder != null) {
+        mSessionRecorder.add(action, x, y, time);
+      }
+      return true;
+    }
+
+    /**
+     * Applies a touch sample at the canvas offset of its own time, rather
+     * than that of the frame draining it, which can be a frame or more later.
+     */
+    private void applyTouch(int action, float x, float y, long time) {
+      Selection entered = mSelections.touch(action, x, y,
+          Viewport.offsetAt(time, mStartTime), mCanvasWidth, mCanvasHeight,
+          mPointsOffset);
+      if (entered != null) {
+        enterSelection(entered);
+      }
+    }
+
+    /** Starts the snap animation of a line entered, and records it. */
+    private void enterSelection(Selection selection) {
+      selection.fatStartTime = FrameClock.uptimeMillis();
+      // The cached score is updated by the next rescore, only peek at it here
+      int score = selection.countIntersections(mViewport);
+      float length = selection.length();
+      Log.d(TAG, "new line score : " + score);
+      Log.d(TAG, "new line length: " + length);
+      Log.d(TAG, "new line ration: " + score / length);
+      if (mSegmentation != null) {
+        Log.d(TAG, "new line agreement: "
+            + mSegmentation.agreement(mPoints, selection));
+      }
+      if (mSelectionLog != null && length > 0) {
+        int chromosome = mChromosome;
+        int start;
+        int end;
+        if (mGenome != null) {
+          int entry = mGenome.entryAt(selection.startOffset);
+          chromosome = mGenome.getChromosome(entry);
+          start = mGenome.genomicPosition(entry, selection.startOffset);
+          end = mGenome.genomicPosition(entry, selection.endOffset);
+        } else {
+          start = genomicPosition(selection.startOffset);
+          end = genomicPosition(selection.endOffset);
+        }
+        mSelectionLog.append(new SelectionLogFile.Record(
+            System.currentTimeMillis(), mRoundStartMillis, chromosome, start,
+            end, selection.height));
+      }
+    }
   }
 
   private GeneRadarThread mThread;
@@ -669,11 +1073,10 @@ public class GeneRadarView extends SurfaceView implements
     mThread = new GeneRadarThread(holder, context, new Handler() {
       @Override
       public void handleMessage(Message m) {
-        int action = m.getData().getInt("action");
-        switch (action) {
+        switch (m.what) {
         case ACTION_SCORE:
           if (mCallback != null)
-            mCallback.updateScore(m.getData().getInt("score"));
+            mCallback.updateScore(m.arg1);
           break;
         case ACTION_FINISH:
           if (mCallback != null)
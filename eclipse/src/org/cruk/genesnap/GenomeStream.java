@@ -0,0 +1,209 @@
+package org.cruk.genesnap;
+
+import static org.cruk.genesnap.Viewport.POS_CONVERSION_FACTOR;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Plays every chromosome of a point set one after the other, as one track
+ * starting at canvas offset 0. Chromosome k starts CHROMOSOME_GAP bases
+ * after the last point of chromosome k - 1.
+ *
+ * Only a window of the track around the screen is held on the heap: a
+ * {@link PointStore} placed at its canvas offset, and its
+ * {@link PointPyramid}. The render thread asks for the canvas offsets it
+ * needs with {@link #request}, and a background thread decodes them from the
+ * point set, which stays in its mapped buffer, into a new window the render
+ * thread picks up with {@link #poll}. The points already scrolled past are
+ * dropped with the window they were in, so memory follows the size of the
+ * screen rather than how far into the genome the player is.
+ */
+final class GenomeStream {
+
+  private static final String TAG = GenomeStream.class.getName();
+
+  /** Bases between the last point of a chromosome and the next one */
+  static final int CHROMOSOME_GAP = 5000000;
+
+  /** Widest window, in pixels, so its positions fit in an int */
+  private static final float MAX_WINDOW_WIDTH = 40000;
+
+  /** Points of the track between two canvas offsets. Immutable. */
+  static final class Window {
+    final PointStore points;
+    final PointPyramid pyramid;
+    /** Canvas offsets the window holds all the points of */
+    final float from;
+    final float to;
+
+    private Window(PointStore points, float from, float to) {
+      this.points = points;
+      this.pyramid = new PointPyramid(points);
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private final PointSetFile mPointSet;
+  /** Track position of position 0 of every entry */
+  private final long[] mTrackStarts;
+  /** Track position of the last point of the last entry */
+  private final long mTrackEnd;
+
+  private final ExecutorService mExecutor;
+  /** Window built and not picked up yet */
+  private final AtomicReference<Window> mReady = new AtomicReference<Window>();
+  /** Bumped by reset so windows requested before it are not published */
+  private int mGeneration;
+  /** Window being built, render thread only */
+  private Future<?> mPending;
+
+  GenomeStream(PointSetFile pointSet) {
+    mPointSet = pointSet;
+    int entries = pointSet.getChromosomeCount();
+    mTrackStarts = new long[entries];
+    long next = 0;
+    long end = 0;
+    for (int i = 0; i < entries; i++) {
+      int count = pointSet.getPointCount(i);
+      if (count == 0) {
+        mTrackStarts[i] = next;
+        continue;
+      }
+      // Positions are relative to the first point of the chromosome
+      mTrackStarts[i] = next - pointSet.getPosition(i, 0);
+      end = mTrackStarts[i] + pointSet.getPosition(i, count - 1);
+      next = end + CHROMOSOME_GAP;
+    }
+    mTrackEnd = end;
+    mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+          }
+        }, "GenomeStream");
+      }
+    });
+  }
+
+  /** Canvas offset of the last point of the track. */
+  float getEndOffset() {
+    return (float) (mTrackEnd * (double) POS_CONVERSION_FACTOR);
+  }
+
+  /** Entry of the point set the canvas offset falls in, or in the gap after. */
+  int entryAt(float offset) {
+    double track = offset / (double) POS_CONVERSION_FACTOR;
+    int entry = 0;
+    while (entry + 1 < mTrackStarts.length
+        && mTrackStarts[entry + 1] + firstPosition(entry + 1) <= track) {
+      entry++;
+    }
+    return entry;
+  }
+
+  /** Chromosome code of an entry. */
+  int getChromosome(int entry) {
+    return mPointSet.getChromosome(entry);
+  }
+
+  /** Genomic position on the chromosome of an entry at a canvas offset. */
+  int genomicPosition(int entry, float offset) {
+    double track = offset / (double) POS_CONVERSION_FACTOR;
+    return (int) Math.round(mPointSet.getBasePosition(entry) + track
+        - mTrackStarts[entry]);
+  }
+
+  private int firstPosition(int entry) {
+    return mPointSet.getPointCount(entry) > 0 ? mPointSet.getPosition(entry, 0)
+        : 0;
+  }
+
+  /**
+   * Starts building the window of canvas offsets [from, to) unless one is
+   * being built already. Render thread only.
+   *
+   * @return false if the request was dropped
+   */
+  boolean request(final float from, final float to) {
+    if (mPending != null && !mPending.isDone()) {
+      return false;
+    }
+    final int generation;
+    synchronized (mReady) {
+      generation = mGeneration;
+    }
+    mPending = mExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        long start = System.nanoTime();
+        Window window = build(Math.max(from, to - MAX_WINDOW_WIDTH), to);
+        synchronized (mReady) {
+          if (generation != mGeneration) {
+            return;
+          }
+          mReady.set(window);
+        }
+        Log.d(TAG, "Window [" + window.from + ", " + window.to + ") of "
+            + window.points.size() + " points, " + window.points.byteSize()
+            + " bytes in " + (System.nanoTime() - start) / 1000000 + " ms");
+      }
+    });
+    return true;
+  }
+
+  /** The window built since the last call, or null. */
+  Window poll() {
+    return mReady.getAndSet(null);
+  }
+
+  /**
+   * Drops the window being built and the one not picked up yet, so a new
+   * round starts from nothing. Render thread only, or a thread that
+   * excludes it.
+   */
+  void reset() {
+    if (mPending != null) {
+      mPending.cancel(true);
+      mPending = null;
+    }
+    synchronized (mReady) {
+      mGeneration++;
+      mReady.set(null);
+    }
+  }
+
+  /** Stops the background thread, dropping any window being built. */
+  void shutdown() {
+    mExecutor.shutdownNow();
+  }
+
+  private Window build(float from, float to) {
+    from = Math.max(0, from);
+    to = Math.max(from, Math.min(to, getEndOffset() + 1));
+    long base = (long) Math.floor(from / (double) POS_CONVERSION_FACTOR);
+    long end = (long) Math.ceil(to / (double) POS_CONVERSION_FACTOR);
+    PointStore.Builder points = new PointStore.Builder(
+        PointStore.COMPACT_VALUE_BITS).setOrigin(
+        (float) (base * (double) POS_CONVERSION_FACTOR));
+    for (int entry = 0; entry < mTrackStarts.length; entry++) {
+      long trackStart = mTrackStarts[entry];
+      int first = mPointSet.lowerBound(entry, base - trackStart);
+      int last = mPointSet.lowerBound(entry, end - trackStart);
+      mPointSet.addPoints(entry, first, last, (int) (trackStart - base),
+          points);
+    }
+    return new Window(points.build(), from, to);
+  }
+}
@@ -1,22 +1,21 @@
 package org.cruk.genesnap;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.regex.Pattern;
+import java.io.File;
 
+import org.cruk.genesnap.DatasetCatalog.Dataset;
 import org.cruk.genesnap.GeneRadarView.GeneRadarThread;
 
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.LoaderManager.LoaderCallbacks;
 import android.content.AsyncTaskLoader;
+import android.content.Context;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.widget.ImageView;
@@ -33,18 +32,47 @@ public class MainActivity extends Activity implements GeneRadarView.Callback {
 
   private int score = 0;
   private int highScore;
-  private float[] mPoints;
+  private DatasetPoints mPoints;
+
+  private DatasetCatalog mCatalog;
+  private PointCache mPointCache;
+  private DatasetPrefetcher mPrefetcher;
+  private SegmentationEngine mSegmentationEngine;
+  private SelectionLog mSelectionLog;
+  private SessionRecorder mSessionRecorder;
+  /** Whole genome of the point set, created on the first round playing it */
+  private GenomeStream mGenome;
+  /** Index in the catalog of the dataset being played */
+  private int mDatasetIndex = 0;
 
   private boolean readyToPlay = false;
 
+  /** Whether the frame profiler overlay is shown */
+  private boolean mProfiling = false;
+
+  /** How points are drawn, one of the GeneRadarThread RENDER_ constants */
+  private int mRenderMode = GeneRadarThread.RENDER_TILES;
+
+  /** Whether rounds play all the chromosomes in a row, from the next one */
+  private boolean mWholeGenome = false;
+
   private static final int LOADER_ID_POINTS = 1;
 
-  private static final float POINT_VALUE_TRIM = 0.15f;
+  private static final String ARG_DATASET_INDEX = "dataset_index";
+
+  /** Share of the app's memory class the point cache may use */
+  private static final int POINT_CACHE_MEMORY_DIVISOR = 8;
 
   private static final String TAG = MainActivity.class.getName();
 
   private static final String PREF_HIGH_SCORE = "high_score";
 
+  /** Selections of all the rounds played, see SelectionLogFile */
+  private static final String SELECTION_LOG = "selections.log";
+
+  /** Touch input of the last rounds played, see SessionFile */
+  private static final String SESSIONS = "sessions";
+
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
@@ -67,10 +95,21 @@ public class MainActivity extends Activity implements GeneRadarView.Callback {
       @Override
       public void onClick(View v) {
         if (readyToPlay)
-          start();
+          nextRound();
       }
     });
 
+    mCatalog = new DatasetCatalog(this);
+    int memoryClass = ((ActivityManager) getSystemService(ACTIVITY_SERVICE))
+        .getMemoryClass();
+    mPointCache = new PointCache(memoryClass * 1024 * 1024
+        / POINT_CACHE_MEMORY_DIVISOR);
+    mPrefetcher = new DatasetPrefetcher(mCatalog, mPointCache);
+    mSegmentationEngine = new SegmentationEngine(new File(getFilesDir(),
+        "segments"));
+    mSelectionLog = SelectionLog.open(new File(getFilesDir(), SELECTION_LOG));
+    mSessionRecorder = new SessionRecorder(new File(getFilesDir(), SESSIONS));
+
     if (savedInstanceState == null) {
       // we were just launched: set up a new game
       // mLunarThread.setState(LunarThread.STATE_READY);
@@ -80,91 +119,162 @@ public class MainActivity extends Activity implements GeneRadarView.Callback {
       // mLunarThread.restoreState(savedInstanceState);
       Log.w(this.getClass().getName(), "SIS is nonnull");
     }
-    getLoaderManager().initLoader(LOADER_ID_POINTS, null,
-        new LoaderCallbacks<float[]>() {
+    Bundle args = new Bundle();
+    args.putInt(ARG_DATASET_INDEX, mDatasetIndex);
+    getLoaderManager().initLoader(LOADER_ID_POINTS, args, mPointsLoaderCallbacks);
+  }
 
-          @Override
-          public Loader<float[]> onCreateLoader(int id, Bundle args) {
-            return new AsyncTaskLoader<float[]>(MainActivity.this) {
-              @Override
-              protected void onStartLoading() {
-                forceLoad();
-              }
-
-              @Override
-              public float[] loadInBackground() {
-                float[] pointArray = null;
-                BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(getContext().getResources()
-                        .openRawResource(R.raw.chrom1)));
-                try {
-                  LinkedList<Float> points = new LinkedList<Float>();
-                  String line = reader.readLine();
-                  float firstPos = -1;
-                  Pattern splitter = Pattern.compile("\\s+");
-                  while (line != null) {
-                    // //Log.d(TAG, "Trying to match on: " + line);
-                    String[] groups = splitter.split(line);
-                    float pos = Float.parseFloat(groups[1]);
-                    float value = Float.parseFloat(groups[2]);
-                    if (value >= POINT_VALUE_TRIM
-                        && value <= 1 - POINT_VALUE_TRIM) {
-                      value = (value - 0.15f) / 0.7f;
-                      if (firstPos == -1) {
-                        firstPos = pos;
-                      }
-                      pos -= firstPos;
-                      // //Log.d(TAG, "Adding point for pos " + pos + " value "
-                      // +
-                      // value);
-                      points.add(pos);
-                      points.add(value);
-                    }
-                    line = reader.readLine();
-                  }
-                  pointArray = new float[points.size()];
-                  Iterator<Float> iter = points.iterator();
-                  for (int i = 0; i < points.size(); i++) {
-                    pointArray[i] = iter.next();
-                  }
-                } catch (IOException e) {
-                  Log.e(TAG, "Exception reading data file", e);
-                } finally {
-                  try {
-                    reader.close();
-                  } catch (IOException e) {
-                    Log.e(TAG, "Exception closing the reader", e);
-                  }
-                }
-                return pointArray;
-              }
-            };
-          }
+  private final LoaderCallbacks<DatasetPoints> mPointsLoaderCallbacks = new LoaderCallbacks<DatasetPoints>() {
 
-          @Override
-          public void onLoadFinished(Loader<float[]> arg0, float[] arg1) {
-            mPoints = arg1;
-            start();
-          }
+    @Override
+    public Loader<DatasetPoints> onCreateLoader(int id, Bundle args) {
+      return new PointsLoader(MainActivity.this, mCatalog, mPrefetcher,
+          args.getInt(ARG_DATASET_INDEX));
+    }
+
+    @Override
+    public void onLoadFinished(Loader<DatasetPoints> loader, DatasetPoints points) {
+      if (points == null) {
+        mLoadingView.setText("Could not load the data :(");
+        return;
+      }
+      Dataset dataset = mCatalog.get(((PointsLoader) loader).mDatasetIndex);
+      mPointCache.put(dataset.id, points);
+      mPoints = points;
+      start();
+    }
+
+    @Override
+    public void onLoaderReset(Loader<DatasetPoints> arg0) {
+      // TODO Auto-generated method stub
+    }
+
+  };
+
+  /**
+   * Loads the points of one dataset of the catalog in the background, picking
+   * up a prefetch of the same dataset if there is one running.
+   */
+  private static class PointsLoader extends AsyncTaskLoader<DatasetPoints> {
+    private final DatasetCatalog mCatalog;
+    private final DatasetPrefetcher mPrefetcher;
+    private final int mDatasetIndex;
+
+    PointsLoader(Context context, DatasetCatalog catalog,
+        DatasetPrefetcher prefetcher, int datasetIndex) {
+      super(context);
+      mCatalog = catalog;
+      mPrefetcher = prefetcher;
+      mDatasetIndex = datasetIndex;
+    }
+
+    @Override
+    protected void onStartLoading() {
+      forceLoad();
+    }
+
+    @Override
+    public DatasetPoints loadInBackground() {
+      mCatalog.open();
+      return mPrefetcher.load(mCatalog.get(mDatasetIndex));
+    }
+  }
+
+  /**
+   * Moves on to the next dataset of the catalog. Starts straight away if its
+   * points are still cached, otherwise loads them first.
+   */
+  private void nextRound() {
+    PointSetFile pointSet = mCatalog.getPointSet();
+    if (mWholeGenome && pointSet != null) {
+      if (mGenome == null) {
+        mGenome = new GenomeStream(pointSet);
+      }
+      startGenome();
+      return;
+    }
+    mDatasetIndex = (mDatasetIndex + 1) % mCatalog.size();
+    Dataset dataset = mCatalog.get(mDatasetIndex);
+    DatasetPoints points = mPointCache.get(dataset.id);
+    Log.d(TAG, "Next round on " + dataset + ", " + mPointCache.stats());
+    if (points != null) {
+      mPoints = points;
+      start();
+      return;
+    }
+    readyToPlay = false;
+    mLoadingView.setText(R.string.loading);
+    Bundle args = new Bundle();
+    args.putInt(ARG_DATASET_INDEX, mDatasetIndex);
+    getLoaderManager().restartLoader(LOADER_ID_POINTS, args, mPointsLoaderCallbacks);
+  }
+
+  private void start() {
+    newRoundThread();
+    mGeneRadarThread.setPoints(mPoints.points, mPoints.pyramid);
+    Dataset dataset = mCatalog.get(mDatasetIndex);
+    mGeneRadarThread.setSelectionLog(mSelectionLog, dataset.chromosome,
+        dataset.base);
+    mGeneRadarThread.setSessionRecorder(mSessionRecorder, dataset.id);
+    mGeneRadarThread.doStart();
+    mGeneRadarView.setVisibility(View.VISIBLE);
 
+    // Read from its file, or computed in the background on the first play
+    final GeneRadarThread thread = mGeneRadarThread;
+    mSegmentationEngine.segment(dataset.id, mPoints.points,
+        new SegmentationEngine.Callback() {
           @Override
-          public void onLoaderReset(Loader<float[]> arg0) {
-            // TODO Auto-generated method stub
+          public void onSegmented(PointStore points, Segmentation segmentation) {
+            thread.setSegmentation(points, segmentation);
           }
-
         });
 
+    readyToPlay = false;
+
+    // Get the next round's data ready while this one plays
+    mPrefetcher.prefetch(mPrefetcher.predictNext(mDatasetIndex));
   }
 
-  private void start() {
+  /** Starts a round through every chromosome, streamed as it goes. */
+  private void startGenome() {
+    newRoundThread();
+    mGeneRadarThread.setGenome(mGenome);
+    mGeneRadarThread.setSelectionLog(mSelectionLog,
+        BafParser.CHROMOSOME_UNKNOWN, 0);
+    mGeneRadarThread.setSessionRecorder(mSessionRecorder,
+        SessionFile.WHOLE_GENOME);
+    mGeneRadarThread.doStart();
+    mGeneRadarView.setVisibility(View.VISIBLE);
+    readyToPlay = false;
+  }
+
+  private void newRoundThread() {
     mLoadingView.setVisibility(View.GONE);
     mSplashView.setVisibility(View.GONE);
     mGeneRadarThread = mGeneRadarView.newThread();
-    mGeneRadarThread.setPoints(mPoints);
-    mGeneRadarThread.doStart();
-    mGeneRadarView.setVisibility(View.VISIBLE);
+    mGeneRadarThread.setProfiling(mProfiling);
+    mGeneRadarThread.setRenderMode(mRenderMode);
+  }
 
-    readyToPlay = false;
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    mPrefetcher.shutdown();
+    mSegmentationEngine.shutdown();
+    if (isFinishing()) {
+      // Shared with the next instance when only recreated
+      mSelectionLog.close();
+    }
+    mSessionRecorder.finish();
+    if (mGenome != null) {
+      mGenome.shutdown();
+    }
+  }
+
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    mPointCache.onTrimMemory(level);
   }
 
   @Override
@@ -174,6 +284,55 @@ public class MainActivity extends Activity implements GeneRadarView.Callback {
     return true;
   }
 
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    switch (item.getItemId()) {
+    case R.id.action_profile_frames:
+      mProfiling = !item.isChecked();
+      item.setChecked(mProfiling);
+      if (mGeneRadarThread != null) {
+        mGeneRadarThread.setProfiling(mProfiling);
+      }
+      return true;
+    case R.id.action_render_points:
+      setRenderMode(item, GeneRadarThread.RENDER_POINTS);
+      return true;
+    case R.id.action_render_batched:
+      setRenderMode(item, GeneRadarThread.RENDER_BATCHED);
+      return true;
+    case R.id.action_render_tiles:
+      setRenderMode(item, GeneRadarThread.RENDER_TILES);
+      return true;
+    case R.id.action_render_pyramid:
+      setRenderMode(item, GeneRadarThread.RENDER_PYRAMID);
+      return true;
+    case R.id.action_render_raster:
+      setRenderMode(item, GeneRadarThread.RENDER_RASTER);
+      return true;
+    case R.id.action_whole_genome:
+      // Takes effect from the next round
+      mWholeGenome = !item.isChecked();
+      item.setChecked(mWholeGenome);
+      return true;
+    case R.id.action_dump_frame_trace:
+      if (mGeneRadarThread != null) {
+        mGeneRadarThread.dumpFrameTrace(new File(getFilesDir(), "frames-"
+            + System.currentTimeMillis() + ".trace"));
+      }
+      return true;
+    default:
+      return super.onOptionsItemSelected(item);
+    }
+  }
+
+  private void setRenderMode(MenuItem item, int renderMode) {
+    mRenderMode = renderMode;
+    item.setChecked(true);
+    if (mGeneRadarThread != null) {
+      mGeneRadarThread.setRenderMode(renderMode);
+    }
+  }
+
   @Override
   public void updateScore(int newScore) {
     score = newScore;
@@ -182,6 +341,9 @@ public class MainActivity extends Activity implements GeneRadarView.Callback {
 
   @Override
   public void endGame() {
+    // The last score sent before the end, the one shown
+    mSessionRecorder.setScore(score);
+    mSessionRecorder.finish();
     String text = "You finished! Well Done!!\n(click to try again)";
     if (score >= highScore) {
       highScore = score;
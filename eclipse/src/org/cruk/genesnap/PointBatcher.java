@@ -0,0 +1,91 @@
+package org.cruk.genesnap;
+
+import java.util.Arrays;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+/**
+ * Draws points in a handful of batched calls instead of one call and one
+ * paint change per point.
+ *
+ * Point colours are quantized into a fixed palette of buckets, from the
+ * middle colour for values of 0.5 to the edge colour for values of 0 and 1.
+ * Points are collected into one reusable coordinate buffer per bucket and
+ * each non-empty bucket is then drawn with a single
+ * {@link Canvas#drawPoints(float[], int, int, Paint)}.
+ */
+final class PointBatcher implements PointSink {
+
+  /** Number of colours in the palette */
+  static final int BUCKETS = 32;
+
+  private static final int INITIAL_BUCKET_CAPACITY = 256;
+
+  /** ARGB colour of every bucket */
+  private final int[] mPalette = new int[BUCKETS];
+
+  /** x, y pairs of the points of every bucket */
+  private final float[][] mCoordinates = new float[BUCKETS][];
+
+  /** Number of floats used in every coordinate buffer */
+  private final int[] mSizes = new int[BUCKETS];
+
+  /**
+   * @param rgbMiddle
+   *          colour of points in the middle of the plot
+   * @param rgbEdge
+   *          colour of points at the top and bottom of the plot
+   */
+  PointBatcher(int[] rgbMiddle, int[] rgbEdge) {
+    for (int b = 0; b < BUCKETS; b++) {
+      double colorMultiplier = (double) b / (BUCKETS - 1);
+      mPalette[b] = Color.argb(0xFF,
+          Math.abs((int) (rgbMiddle[0] + (rgbEdge[0] - rgbMiddle[0]) * colorMultiplier)),
+          Math.abs((int) (rgbMiddle[1] + (rgbEdge[1] - rgbMiddle[1]) * colorMultiplier)),
+          Math.abs((int) (rgbMiddle[2] + (rgbEdge[2] - rgbMiddle[2]) * colorMultiplier)));
+      mCoordinates[b] = new float[INITIAL_BUCKET_CAPACITY];
+    }
+  }
+
+  /** Bucket of the palette for a point value in [0, 1]. */
+  static int bucket(float value) {
+    int bucket = (int) (Math.abs(value - 0.5f) * 2 * (BUCKETS - 1) + 0.5f);
+    return bucket < BUCKETS ? bucket : BUCKETS - 1;
+  }
+
+  /** Colour of a bucket of the palette. */
+  int color(int bucket) {
+    return mPalette[bucket];
+  }
+
+  /** Queues a point for the next {@link #flush}. */
+  @Override
+  public void add(float x, float y, float value) {
+    int b = bucket(value);
+    float[] coordinates = mCoordinates[b];
+    int size = mSizes[b];
+    if (size + 2 > coordinates.length) {
+      coordinates = Arrays.copyOf(coordinates, coordinates.length * 2);
+      mCoordinates[b] = coordinates;
+    }
+    coordinates[size] = x;
+    coordinates[size + 1] = y;
+    mSizes[b] = size + 2;
+  }
+
+  /**
+   * Draws all the queued points, one call per colour, and empties the
+   * buckets. The colour of <code>paint</code> is changed.
+   */
+  void flush(Canvas canvas, Paint paint) {
+    for (int b = 0; b < BUCKETS; b++) {
+      if (mSizes[b] > 0) {
+        paint.setColor(mPalette[b]);
+        canvas.drawPoints(mCoordinates[b], 0, mSizes[b], paint);
+        mSizes[b] = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.cruk.genesnap;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+/**
+ * Keeps the points of recently played datasets and their pyramids, keyed by
+ * dataset id, within a budget in bytes. Least recently used datasets are
+ * evicted first.
+ */
+class PointCache extends LruCache<Integer, DatasetPoints> {
+
+  PointCache(int maxBytes) {
+    super(maxBytes);
+  }
+
+  @Override
+  protected int sizeOf(Integer key, DatasetPoints value) {
+    return value.byteSize();
+  }
+
+  /**
+   * Gives memory back when the system asks for it: everything once we are
+   * well down the background list or memory is critical, half of it when
+   * running low or hidden.
+   */
+  void onTrimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      trimToSize(maxSize() / 2);
+    }
+  }
+
+  /** One line summary of the hit, miss and eviction counters. */
+  synchronized String stats() {
+    return "PointCache[" + size() + "/" + maxSize() + " bytes, hits=" + hitCount()
+        + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+  }
+}
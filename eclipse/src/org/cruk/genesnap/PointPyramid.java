@@ -0,0 +1,260 @@
+package org.cruk.genesnap;
+
+import java.util.Arrays;
+
+/**
+ * Level of detail summary of a point store, so dense regions can be drawn
+ * with one primitive per occupied screen cell instead of one per point.
+ *
+ * Level <code>k</code> splits the scaled positions into bins 2^k pixels
+ * wide, and every bin into BANDS bands of value. For each occupied
+ * (bin, band) cell it keeps the minimum, maximum and number of the values
+ * that fell in it. Level 0 is built from the points and every other level
+ * by merging pairs of bins of the level below.
+ *
+ * The cells of a level are stored bin after bin, sorted by band, with
+ * mBinStart[level][bin] the index of the first cell of a bin relative to the
+ * first bin of the level. Immutable once built.
+ */
+final class PointPyramid {
+
+  /** Number of value bands */
+  static final int BANDS = 256;
+
+  /** Number of levels, the widest bins are 2^(LEVELS - 1) pixels */
+  static final int LEVELS = 6;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /** Level 0 bin of the first point */
+  private final int mFirstBin;
+
+  private final int[][] mBinStart = new int[LEVELS][];
+  private final short[][] mBand = new short[LEVELS][];
+  private final float[][] mMin = new float[LEVELS][];
+  private final float[][] mMax = new float[LEVELS][];
+  private final int[][] mCount = new int[LEVELS][];
+
+  /** Builds the pyramid of points sorted by position. Takes O(n) time. */
+  PointPyramid(PointStore points) {
+    int end = points.size();
+    if (end == 0) {
+      mFirstBin = 0;
+      for (int level = 0; level < LEVELS; level++) {
+        mBinStart[level] = new int[1];
+        mBand[level] = new short[0];
+        mMin[level] = new float[0];
+        mMax[level] = new float[0];
+        mCount[level] = new int[0];
+      }
+      return;
+    }
+    mFirstBin = bin(points.scaled(0));
+    buildBase(points, end, bin(points.scaled(end - 1)) - mFirstBin + 1);
+    for (int level = 1; level < LEVELS; level++) {
+      buildLevel(level);
+    }
+  }
+
+  private static int bin(float scaled) {
+    return (int) Math.floor(scaled);
+  }
+
+  private static int band(float value) {
+    int band = (int) (value * BANDS);
+    return band < 0 ? 0 : band < BANDS ? band : BANDS - 1;
+  }
+
+  private void buildBase(PointStore points, int end, int bins) {
+    int[] binStart = new int[bins + 1];
+    short[] band = new short[INITIAL_CAPACITY];
+    float[] min = new float[INITIAL_CAPACITY];
+    float[] max = new float[INITIAL_CAPACITY];
+    int[] count = new int[INITIAL_CAPACITY];
+
+    // Cells of the current bin, indexed by band
+    float[] binMin = new float[BANDS];
+    float[] binMax = new float[BANDS];
+    int[] binCount = new int[BANDS];
+    int[] occupied = new int[BANDS];
+
+    int cells = 0;
+    int i = 0;
+    for (int b = 0; b < bins; b++) {
+      binStart[b] = cells;
+      int occupiedCount = 0;
+      for (; i < end && bin(points.scaled(i)) - mFirstBin == b; i++) {
+        float value = points.value(i);
+        int v = band(value);
+        if (binCount[v] == 0) {
+          occupied[occupiedCount++] = v;
+          binMin[v] = value;
+          binMax[v] = value;
+        } else {
+          binMin[v] = Math.min(binMin[v], value);
+          binMax[v] = Math.max(binMax[v], value);
+        }
+        binCount[v]++;
+      }
+      Arrays.sort(occupied, 0, occupiedCount);
+      if (cells + occupiedCount > band.length) {
+        int capacity = Math.max(band.length * 2, cells + occupiedCount);
+        band = Arrays.copyOf(band, capacity);
+        min = Arrays.copyOf(min, capacity);
+        max = Arrays.copyOf(max, capacity);
+        count = Arrays.copyOf(count, capacity);
+      }
+      for (int o = 0; o < occupiedCount; o++) {
+        int v = occupied[o];
+        band[cells] = (short) v;
+        min[cells] = binMin[v];
+        max[cells] = binMax[v];
+        count[cells] = binCount[v];
+        binCount[v] = 0;
+        cells++;
+      }
+    }
+    binStart[bins] = cells;
+    store(0, binStart, band, min, max, count, cells);
+  }
+
+  /** Merges pairs of bins of level - 1, band lists are merged in order. */
+  private void buildLevel(int level) {
+    int[] childStart = mBinStart[level - 1];
+    short[] childBand = mBand[level - 1];
+    float[] childMin = mMin[level - 1];
+    float[] childMax = mMax[level - 1];
+    int[] childCount = mCount[level - 1];
+    int childFirst = mFirstBin >> (level - 1);
+    int childBins = childStart.length - 1;
+
+    int first = mFirstBin >> level;
+    int bins = ((childFirst + childBins - 1) >> 1) - first + 1;
+    int[] binStart = new int[bins + 1];
+    int capacity = childBand.length;
+    short[] band = new short[capacity];
+    float[] min = new float[capacity];
+    float[] max = new float[capacity];
+    int[] count = new int[capacity];
+
+    int cells = 0;
+    for (int b = 0; b < bins; b++) {
+      binStart[b] = cells;
+      // Children of absolute bin first + b, relative to childFirst
+      int left = (first + b) * 2 - childFirst;
+      int i = left >= 0 && left < childBins ? childStart[left] : 0;
+      int iEnd = left >= 0 && left < childBins ? childStart[left + 1] : 0;
+      int j = left + 1 >= 0 && left + 1 < childBins ? childStart[left + 1] : 0;
+      int jEnd = left + 1 >= 0 && left + 1 < childBins ? childStart[left + 2] : 0;
+      while (i < iEnd || j < jEnd) {
+        int c;
+        if (j >= jEnd || (i < iEnd && childBand[i] < childBand[j])) {
+          c = i++;
+        } else if (i >= iEnd || childBand[j] < childBand[i]) {
+          c = j++;
+        } else {
+          // Same band in both children
+          band[cells] = childBand[i];
+          min[cells] = Math.min(childMin[i], childMin[j]);
+          max[cells] = Math.max(childMax[i], childMax[j]);
+          count[cells] = childCount[i] + childCount[j];
+          cells++;
+          i++;
+          j++;
+          continue;
+        }
+        band[cells] = childBand[c];
+        min[cells] = childMin[c];
+        max[cells] = childMax[c];
+        count[cells] = childCount[c];
+        cells++;
+      }
+    }
+    binStart[bins] = cells;
+    store(level, binStart, band, min, max, count, cells);
+  }
+
+  private void store(int level, int[] binStart, short[] band, float[] min,
+      float[] max, int[] count, int cells) {
+    mBinStart[level] = binStart;
+    mBand[level] = Arrays.copyOf(band, cells);
+    mMin[level] = Arrays.copyOf(min, cells);
+    mMax[level] = Arrays.copyOf(max, cells);
+    mCount[level] = Arrays.copyOf(count, cells);
+  }
+
+  /** Finest level whose bins are at least <code>cellSize</code> pixels wide. */
+  static int level(float cellSize) {
+    int level = 0;
+    while (level < LEVELS - 1 && (1 << level) < cellSize) {
+      level++;
+    }
+    return level;
+  }
+
+  /** Number of occupied cells of a level. */
+  int cellCount(int level) {
+    return mBand[level].length;
+  }
+
+  /** Approximate size in bytes of all the levels. */
+  int byteSize() {
+    int size = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      size += mBinStart[level].length * 4 + mBand[level].length * 2
+          + (mMin[level].length + mMax[level].length + mCount[level].length) * 4;
+    }
+    return size;
+  }
+
+  /**
+   * Queues into <code>sink</code> one point per occupied cell of
+   * <code>cellSize</code> pixels for the scaled positions in [from, to],
+   * drawn with position <code>from</code> at x = <code>left</code>. Cells are
+   * as wide as the bins of {@link #level(float)} and
+   * <code>cellSize</code> high; a point is drawn at the middle of the values
+   * that fell in its cell.
+   */
+  void draw(PointSink sink, float from, float to, float left,
+      int height, float cellSize) {
+    int level = level(cellSize);
+    int width = 1 << level;
+    int first = mFirstBin >> level;
+    int[] binStart = mBinStart[level];
+    short[] band = mBand[level];
+    float[] min = mMin[level];
+    float[] max = mMax[level];
+    int bins = binStart.length - 1;
+    // Screen row of band b is (int) ((b + 0.5f) * rowScale)
+    float rowScale = height / (BANDS * cellSize);
+
+    int fromBin = Math.max(0, (int) Math.floor(from / width) - first);
+    int toBin = Math.min(bins - 1, (int) Math.floor(to / width) - first);
+    for (int b = fromBin; b <= toBin; b++) {
+      float x = left + ((first + b) * width + width * 0.5f) - from;
+      int row = -1;
+      float rowMin = 0;
+      float rowMax = 0;
+      for (int c = binStart[b]; c < binStart[b + 1]; c++) {
+        // Bands are sorted, so the bands of a screen cell are adjacent
+        int cellRow = (int) ((band[c] + 0.5f) * rowScale);
+        if (cellRow != row) {
+          if (row != -1) {
+            float value = (rowMin + rowMax) * 0.5f;
+            sink.add(x, value * height, value);
+          }
+          row = cellRow;
+          rowMin = min[c];
+          rowMax = max[c];
+        } else {
+          rowMin = Math.min(rowMin, min[c]);
+          rowMax = Math.max(rowMax, max[c]);
+        }
+      }
+      if (row != -1) {
+        float value = (rowMin + rowMax) * 0.5f;
+        sink.add(x, value * height, value);
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package org.cruk.genesnap;
+
+import java.util.Arrays;
+
+/**
+ * Draws points straight into an ARGB pixel buffer in plain Java, for devices
+ * whose Canvas point path is slow, and to check frames off the device.
+ *
+ * A point is a square pointSize pixels wide centred on it, like a point
+ * drawn with that stroke width and the default butt cap, clipped to the
+ * buffer. Its colour comes from a table of LEVELS colours indexed by value,
+ * built once from the same gradient as the other renderers, so a point
+ * costs two float to int conversions and then integer stores only. The
+ * buffer is kept from frame to frame and only reallocated when its size
+ * changes.
+ */
+final class PointRaster implements PointSink {
+
+  /** Number of colours in the table */
+  static final int LEVELS = 256;
+
+  private final int[] mColors = new int[LEVELS];
+  private final int mPointSize;
+  /** Added to a coordinate before flooring it to get the first pixel */
+  private final float mCornerOffset;
+
+  private int[] mPixels = new int[0];
+  private int mWidth;
+  private int mHeight;
+
+  /**
+   * @param rgbMiddle
+   *          colour of points in the middle of the plot
+   * @param rgbEdge
+   *          colour of points at the top and bottom of the plot
+   * @param pointSize
+   *          width of a point, in pixels
+   */
+  PointRaster(int[] rgbMiddle, int[] rgbEdge, int pointSize) {
+    for (int l = 0; l < LEVELS; l++) {
+      double colorMultiplier = Math.abs((double) l / (LEVELS - 1) - 0.5) / 0.5;
+      int r = Math.abs((int) (rgbMiddle[0] + (rgbEdge[0] - rgbMiddle[0]) * colorMultiplier));
+      int g = Math.abs((int) (rgbMiddle[1] + (rgbEdge[1] - rgbMiddle[1]) * colorMultiplier));
+      int b = Math.abs((int) (rgbMiddle[2] + (rgbEdge[2] - rgbMiddle[2]) * colorMultiplier));
+      mColors[l] = 0xFF000000 | r << 16 | g << 8 | b;
+    }
+    mPointSize = pointSize;
+    // Pixels whose centre is within the square: from ceil(x - size / 2 - 0.5)
+    mCornerOffset = 0.5f - pointSize / 2f;
+  }
+
+  /** Sets the size of the buffer, keeping it if the size is unchanged. */
+  void resize(int width, int height) {
+    if (width != mWidth || height != mHeight) {
+      mWidth = width;
+      mHeight = height;
+      mPixels = new int[width * height];
+    }
+  }
+
+  int getWidth() {
+    return mWidth;
+  }
+
+  int getHeight() {
+    return mHeight;
+  }
+
+  /** Pixels row after row, valid until the next {@link #resize}. */
+  int[] getPixels() {
+    return mPixels;
+  }
+
+  /** Fills the whole buffer with an ARGB colour. */
+  void clear(int color) {
+    Arrays.fill(mPixels, color);
+  }
+
+  /** Colour of a point value in [0, 1]. */
+  int color(float value) {
+    int level = (int) (value * (LEVELS - 1) + 0.5f);
+    return mColors[level < 0 ? 0 : level < LEVELS ? level : LEVELS - 1];
+  }
+
+  @Override
+  public void add(float x, float y, float value) {
+    int left = (int) Math.floor(x + mCornerOffset);
+    int top = (int) Math.floor(y + mCornerOffset);
+    int right = Math.min(left + mPointSize, mWidth);
+    int bottom = Math.min(top + mPointSize, mHeight);
+    left = Math.max(left, 0);
+    top = Math.max(top, 0);
+    if (left >= right || top >= bottom) {
+      return;
+    }
+    int color = color(value);
+    int[] pixels = mPixels;
+    for (int row = top * mWidth; top < bottom; top++, row += mWidth) {
+      for (int i = row + left; i < row + right; i++) {
+        pixels[i] = color;
+      }
+    }
+  }
+}
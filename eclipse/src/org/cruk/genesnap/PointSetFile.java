@@ -0,0 +1,240 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary container for the normalized (pos, value) pairs of one or
+ * more chromosomes, so the app does not have to parse text on every start.
+ *
+ * Layout, all little-endian:
+ *
+ * <pre>
+ * header     magic "GSPS", version, chromosome count, reserved   (16 bytes)
+ * directory  per chromosome: code, int base position, point count,
+ *            byte offset of its data                          (16 bytes each)
+ * data       per chromosome: point count * (int pos, float value)
+ * trailer    CRC32 of everything above                         (4 bytes)
+ * </pre>
+ *
+ * Version 1 files, with float base positions and positions, are still read;
+ * their positions are rounded to the nearest integer.
+ *
+ * Files are produced offline by the converter in tools/ and read back with
+ * {@link #read(ByteBuffer)} from a single bulk read.
+ */
+public final class PointSetFile {
+
+  /** "GSPS" read as a little-endian int. */
+  public static final int MAGIC = 0x53505347;
+  public static final int VERSION = 2;
+  /** Float positions, may be inexact past 2^24 */
+  private static final int VERSION_FLOAT_POSITIONS = 1;
+
+  private static final int HEADER_SIZE = 16;
+  private static final int DIRECTORY_ENTRY_SIZE = 16;
+  private static final int TRAILER_SIZE = 4;
+
+  private final ByteBuffer mBuffer;
+  private final int mVersion;
+  private final int[] mChromosomes;
+  private final int[] mBases;
+  private final int[] mPointCounts;
+  private final int[] mDataOffsets;
+
+  private PointSetFile(ByteBuffer buffer, int version, int[] chromosomes,
+      int[] bases, int[] pointCounts, int[] dataOffsets) {
+    mBuffer = buffer;
+    mVersion = version;
+    mChromosomes = chromosomes;
+    mBases = bases;
+    mPointCounts = pointCounts;
+    mDataOffsets = dataOffsets;
+  }
+
+  /**
+   * Validates and indexes a whole file held in <code>buffer</code>, from its
+   * position to its limit. The buffer is kept, not copied, so a direct or
+   * mapped buffer stays off the Java heap.
+   *
+   * @throws IOException if the header, directory or checksum are invalid
+   */
+  public static PointSetFile read(ByteBuffer buffer) throws IOException {
+    ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int size = buf.remaining();
+    if (size < HEADER_SIZE + TRAILER_SIZE) {
+      throw new IOException("Point set file too short: " + size + " bytes");
+    }
+    if (buf.getInt(0) != MAGIC) {
+      throw new IOException("Not a point set file");
+    }
+    int version = buf.getInt(4);
+    if (version != VERSION && version != VERSION_FLOAT_POSITIONS) {
+      throw new IOException("Unsupported point set version " + version);
+    }
+    int count = buf.getInt(8);
+    int dataStart = HEADER_SIZE + count * DIRECTORY_ENTRY_SIZE;
+    if (count < 0 || dataStart > size - TRAILER_SIZE) {
+      throw new IOException("Corrupt point set directory");
+    }
+    if (checksum(buf, size - TRAILER_SIZE) != buf.getInt(size - TRAILER_SIZE)) {
+      throw new IOException("Point set checksum mismatch");
+    }
+
+    int[] chromosomes = new int[count];
+    int[] bases = new int[count];
+    int[] pointCounts = new int[count];
+    int[] dataOffsets = new int[count];
+    for (int i = 0; i < count; i++) {
+      int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+      chromosomes[i] = buf.getInt(entry);
+      bases[i] = version == VERSION_FLOAT_POSITIONS
+          ? Math.round(buf.getFloat(entry + 4)) : buf.getInt(entry + 4);
+      pointCounts[i] = buf.getInt(entry + 8);
+      dataOffsets[i] = buf.getInt(entry + 12);
+      long dataEnd = dataOffsets[i] + 8L * pointCounts[i];
+      if (pointCounts[i] < 0 || dataOffsets[i] < dataStart
+          || dataEnd > size - TRAILER_SIZE) {
+        throw new IOException("Corrupt point set entry " + i);
+      }
+    }
+    return new PointSetFile(buf, version, chromosomes, bases, pointCounts,
+        dataOffsets);
+  }
+
+  public int getChromosomeCount() {
+    return mChromosomes.length;
+  }
+
+  /** Chromosome code of the entry, see {@link BafParser#chromosomeCode}. */
+  public int getChromosome(int entry) {
+    return mChromosomes[entry];
+  }
+
+  /** Position that was subtracted from all the points of the entry. */
+  public int getBasePosition(int entry) {
+    return mBases[entry];
+  }
+
+  public int getPointCount(int entry) {
+    return mPointCounts[entry];
+  }
+
+  /** Index of the entry for a chromosome code, or -1 if it is not present. */
+  public int indexOf(int chromosome) {
+    for (int i = 0; i < mChromosomes.length; i++) {
+      if (mChromosomes[i] == chromosome) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Position of point <code>i</code> of an entry, read in place. */
+  public int getPosition(int entry, int i) {
+    int offset = mDataOffsets[entry] + i * 8;
+    return mVersion == VERSION_FLOAT_POSITIONS
+        ? Math.round(mBuffer.getFloat(offset)) : mBuffer.getInt(offset);
+  }
+
+  /**
+   * Index of the first point of an entry at or after <code>position</code>,
+   * or its point count. Binary searches the data in place.
+   */
+  public int lowerBound(int entry, long position) {
+    int low = 0;
+    int high = mPointCounts[entry];
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getPosition(entry, mid) < position) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Decodes the points of an entry into a new store, in one pass over the
+   * data.
+   *
+   * @param valueBits
+   *          precision of the values of the store, see
+   *          {@link PointStore.Builder#Builder(int)}
+   */
+  public PointStore getPoints(int entry, int valueBits) {
+    PointStore.Builder points = new PointStore.Builder(valueBits);
+    addPoints(entry, 0, mPointCounts[entry], 0, points);
+    return points.build();
+  }
+
+  /**
+   * Adds the points [from, to) of an entry to <code>points</code>, with
+   * <code>shift</code> added to their positions.
+   */
+  public void addPoints(int entry, int from, int to, int shift,
+      PointStore.Builder points) {
+    for (int i = from; i < to; i++) {
+      points.add(getPosition(entry, i) + shift,
+          mBuffer.getFloat(mDataOffsets[entry] + i * 8 + 4));
+    }
+  }
+
+  /**
+   * Writes a point set file.
+   *
+   * @param chromosomes
+   *          chromosome code of every entry
+   * @param bases
+   *          base position of every entry
+   * @param points
+   *          points of every entry
+   */
+  public static void write(OutputStream out, int[] chromosomes, int[] bases,
+      PointStore[] points) throws IOException {
+    int count = chromosomes.length;
+    int size = HEADER_SIZE + count * DIRECTORY_ENTRY_SIZE;
+    for (int i = 0; i < count; i++) {
+      size += points[i].size() * 8;
+    }
+    ByteBuffer buf = ByteBuffer.allocate(size + TRAILER_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    buf.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0);
+    int dataOffset = HEADER_SIZE + count * DIRECTORY_ENTRY_SIZE;
+    for (int i = 0; i < count; i++) {
+      int pointCount = points[i].size();
+      buf.putInt(chromosomes[i]).putInt(bases[i]).putInt(pointCount)
+          .putInt(dataOffset);
+      dataOffset += pointCount * 8;
+    }
+    for (int i = 0; i < count; i++) {
+      PointStore entry = points[i];
+      for (int p = 0; p < entry.size(); p++) {
+        buf.putInt(entry.position(p)).putFloat(entry.value(p));
+      }
+    }
+    buf.putInt(checksum(buf, size));
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  private static int checksum(ByteBuffer buf, int length) {
+    CRC32 crc = new CRC32();
+    if (buf.hasArray()) {
+      crc.update(buf.array(), buf.arrayOffset(), length);
+    } else {
+      byte[] chunk = new byte[8192];
+      ByteBuffer data = buf.duplicate();
+      data.position(0);
+      for (int done = 0; done < length; done += chunk.length) {
+        int n = Math.min(chunk.length, length - done);
+        data.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+    }
+    return (int) crc.getValue();
+  }
+}
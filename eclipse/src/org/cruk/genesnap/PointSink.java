@@ -0,0 +1,12 @@
+package org.cruk.genesnap;
+
+/**
+ * Receives the points of a frame once they are placed on the canvas.
+ *
+ * @see PointBatcher
+ */
+interface PointSink {
+
+  /** Takes a point at (x, y) with its value in [0, 1]. */
+  void add(float x, float y, float value);
+}
@@ -0,0 +1,272 @@
+package org.cruk.genesnap;
+
+import static org.cruk.genesnap.Viewport.POS_CONVERSION_FACTOR;
+
+import java.util.Arrays;
+
+/**
+ * Compact read only storage for the points of a dataset: exact integer
+ * positions, and values in [0, 1] quantized to 8 or 16 bits.
+ *
+ * Points are grouped in blocks of BLOCK_SIZE. A block keeps its smallest
+ * position, and the offset of every position from it bit packed with the
+ * width of the largest offset of the block. Any point decodes with a few
+ * shifts and masks, in order or at random. At the SNP spacing of current
+ * arrays offsets take 15 to 20 bits, so with 8 bit values a point takes 3
+ * to 4 bytes rather than the 8 of a (pos, value) pair of floats, and
+ * positions stay exact on the longest chromosomes.
+ *
+ * Points are indexed from 0 to size() - 1. Positions are relative to the
+ * base position of the dataset and sorted, except in stores built for tools
+ * that hold several chromosomes one after the other. A store can be placed
+ * further along the canvas with {@link Builder#setOrigin}, for windows of a
+ * track longer than int positions reach.
+ */
+public final class PointStore {
+
+  private static final int BLOCK_SHIFT = 5;
+  static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  /** Value precision the app uses, bands finer than this are not drawn */
+  public static final int COMPACT_VALUE_BITS = 8;
+  /** Value precision that keeps the 4 decimals of the BAF files */
+  public static final int PRECISE_VALUE_BITS = 16;
+
+  /** Store with no points */
+  public static final PointStore EMPTY = new Builder(COMPACT_VALUE_BITS).build();
+
+  private final int mSize;
+  private final int mValueBits;
+  private final float mValueScale;
+  /** Scaled position of position 0 */
+  private final float mOrigin;
+
+  /** Smallest position of every block */
+  private final int[] mBlockBases;
+  /** Index in mPacked of the first bit of every block */
+  private final int[] mBlockBits;
+  /** Bits per offset of every block, 0 when all its positions are equal */
+  private final byte[] mBlockWidths;
+  /** Offsets from the block base, with one spare word at the end */
+  private final int[] mPacked;
+
+  /** Quantized values, one of them null */
+  private final byte[] mValues8;
+  private final char[] mValues16;
+
+  private PointStore(Builder builder) {
+    int blocks = (builder.mSize + BLOCK_MASK) >>> BLOCK_SHIFT;
+    mSize = builder.mSize;
+    mValueBits = builder.mValueBits;
+    mValueScale = 1f / ((1 << mValueBits) - 1);
+    mOrigin = builder.mOrigin;
+    mBlockBases = Arrays.copyOf(builder.mBlockBases, blocks);
+    mBlockBits = Arrays.copyOf(builder.mBlockBits, blocks);
+    mBlockWidths = Arrays.copyOf(builder.mBlockWidths, blocks);
+    mPacked = Arrays.copyOf(builder.mPacked, (int) ((builder.mBit + 31) >>> 5) + 1);
+    mValues8 = builder.mValues8 != null ? Arrays.copyOf(builder.mValues8, mSize) : null;
+    mValues16 = builder.mValues16 != null ? Arrays.copyOf(builder.mValues16, mSize)
+        : null;
+  }
+
+  /** Number of points. */
+  public int size() {
+    return mSize;
+  }
+
+  public int getValueBits() {
+    return mValueBits;
+  }
+
+  /** Exact position of point <code>i</code>, relative to the dataset base. */
+  public int position(int i) {
+    int block = i >>> BLOCK_SHIFT;
+    int width = mBlockWidths[block];
+    if (width == 0) {
+      return mBlockBases[block];
+    }
+    int bit = mBlockBits[block] + (i & BLOCK_MASK) * width;
+    int word = bit >>> 5;
+    long bits = (long) mPacked[word + 1] << 32 | (mPacked[word] & 0xffffffffL);
+    return mBlockBases[block] + (int) ((bits >>> (bit & 31)) & ((1L << width) - 1));
+  }
+
+  /** Value of point <code>i</code>, in [0, 1]. */
+  public float value(int i) {
+    if (mValues8 != null) {
+      return (mValues8[i] & 0xff) * mValueScale;
+    }
+    return mValues16[i] * mValueScale;
+  }
+
+  /** Position of point <code>i</code> in canvas pixels. */
+  float scaled(int i) {
+    return mOrigin + position(i) * POS_CONVERSION_FACTOR;
+  }
+
+  /**
+   * Index in [from, to] of the first point whose scaled position is not less
+   * than <code>offset</code>, <code>to</code> if there is none.
+   */
+  int lowerBound(int from, int to, float offset) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (scaled(mid) < offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Index in [from, to] of the first point whose scaled position is greater
+   * than <code>offset</code>, <code>to</code> if there is none.
+   */
+  int upperBound(int from, int to, float offset) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (scaled(mid) <= offset) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /** Approximate memory taken by the store, in bytes. */
+  public int byteSize() {
+    return mBlockBases.length * 9 + mPacked.length * 4 + mSize * mValueBits / 8;
+  }
+
+  /** Copies the points [from, to) to a new store. */
+  public PointStore copyOfRange(int from, int to) {
+    Builder builder = new Builder(mValueBits).setOrigin(mOrigin);
+    for (int i = from; i < to; i++) {
+      builder.add(position(i), value(i));
+    }
+    return builder.build();
+  }
+
+  /** Appends points one at a time. */
+  public static final class Builder {
+
+    private final int mValueBits;
+    private final int mValueMax;
+    private int mSize;
+    private float mOrigin;
+
+    private final int[] mBlock = new int[BLOCK_SIZE];
+    private int[] mBlockBases = new int[64];
+    private int[] mBlockBits = new int[64];
+    private byte[] mBlockWidths = new byte[64];
+    private int[] mPacked = new int[1024];
+    /** Next free bit of mPacked */
+    private long mBit;
+
+    private byte[] mValues8;
+    private char[] mValues16;
+
+    /**
+     * @param valueBits
+     *          {@link PointStore#COMPACT_VALUE_BITS} or
+     *          {@link PointStore#PRECISE_VALUE_BITS}
+     */
+    public Builder(int valueBits) {
+      if (valueBits != COMPACT_VALUE_BITS && valueBits != PRECISE_VALUE_BITS) {
+        throw new IllegalArgumentException("Unsupported value bits " + valueBits);
+      }
+      mValueBits = valueBits;
+      mValueMax = (1 << valueBits) - 1;
+      if (valueBits == COMPACT_VALUE_BITS) {
+        mValues8 = new byte[1024];
+      } else {
+        mValues16 = new char[1024];
+      }
+    }
+
+    public int size() {
+      return mSize;
+    }
+
+    /** Places position 0 at <code>origin</code> canvas pixels, 0 by default. */
+    public Builder setOrigin(float origin) {
+      mOrigin = origin;
+      return this;
+    }
+
+    /** Appends a point, its value clamped to [0, 1]. */
+    public Builder add(int position, float value) {
+      int q = Math.round(Math.min(1, Math.max(0, value)) * mValueMax);
+      if (mValues8 != null) {
+        if (mSize == mValues8.length) {
+          mValues8 = Arrays.copyOf(mValues8, mSize * 2);
+        }
+        mValues8[mSize] = (byte) q;
+      } else {
+        if (mSize == mValues16.length) {
+          mValues16 = Arrays.copyOf(mValues16, mSize * 2);
+        }
+        mValues16[mSize] = (char) q;
+      }
+      mBlock[mSize & BLOCK_MASK] = position;
+      mSize++;
+      if ((mSize & BLOCK_MASK) == 0) {
+        packBlock(BLOCK_SIZE);
+      }
+      return this;
+    }
+
+    /** Packs the last block, the builder must not be used afterwards. */
+    public PointStore build() {
+      if ((mSize & BLOCK_MASK) != 0) {
+        packBlock(mSize & BLOCK_MASK);
+      }
+      if (mBit > Integer.MAX_VALUE) {
+        throw new IllegalStateException("Too many points, " + mSize);
+      }
+      return new PointStore(this);
+    }
+
+    private void packBlock(int count) {
+      int block = (mSize - 1) >>> BLOCK_SHIFT;
+      int min = mBlock[0];
+      int max = mBlock[0];
+      for (int i = 1; i < count; i++) {
+        min = Math.min(min, mBlock[i]);
+        max = Math.max(max, mBlock[i]);
+      }
+      int width = 64 - Long.numberOfLeadingZeros((long) max - min);
+      if (block == mBlockBases.length) {
+        int capacity = block * 2;
+        mBlockBases = Arrays.copyOf(mBlockBases, capacity);
+        mBlockBits = Arrays.copyOf(mBlockBits, capacity);
+        mBlockWidths = Arrays.copyOf(mBlockWidths, capacity);
+      }
+      mBlockBases[block] = min;
+      mBlockBits[block] = (int) mBit;
+      mBlockWidths[block] = (byte) width;
+      int words = (int) ((mBit + (long) count * width + 31) >>> 5) + 1;
+      if (words > mPacked.length) {
+        mPacked = Arrays.copyOf(mPacked, Math.max(words, mPacked.length * 2));
+      }
+      for (int i = 0; i < count; i++) {
+        long offset = (long) mBlock[i] - min;
+        int word = (int) (mBit >>> 5);
+        int shift = (int) (mBit & 31);
+        mPacked[word] |= (int) (offset << shift);
+        if (shift + width > 32) {
+          mPacked[word + 1] |= (int) (offset >>> (32 - shift));
+        }
+        mBit += width;
+      }
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reference segmentation of a BAF track: runs of points whose mirrored B
+ * allele frequency, |value - 0.5|, has the same mean. A drawn line agrees
+ * with the track where its own mirrored height matches the mean of the
+ * segments under it.
+ *
+ * Segments are found by binary segmentation in the style of circular binary
+ * segmentation: a run is split at the point that maximizes the t statistic
+ * of the difference of means on both sides, as long as that statistic is
+ * above SPLIT_THRESHOLD noise standard deviations, and the halves are split
+ * again. Long tracks are segmented in chunks which are then joined with
+ * {@link #concat}, merging the segments on both sides of a chunk boundary
+ * when they do not differ significantly.
+ *
+ * Segment <code>i</code> covers the points [getStart(i), getEnd(i)),
+ * counted in points, not in array indexes. Immutable.
+ *
+ * The file format is little endian: MAGIC, VERSION, a 64 bit key, the number
+ * of points and of segments, the end of every segment, the mean of every
+ * segment, then a CRC32 of all of the above.
+ */
+final class Segmentation {
+
+  /** "GSSG" */
+  static final int MAGIC = 0x47535347;
+  static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 24;
+  private static final int TRAILER_SIZE = 4;
+
+  /** Segments shorter than this many points are not split off */
+  static final int MIN_SEGMENT = 16;
+
+  /** t statistic, in noise standard deviations, needed to split */
+  static final float SPLIT_THRESHOLD = 5;
+
+  /** Points segmented on their own before {@link #concat} joins them */
+  static final int CHUNK_POINTS = 16384;
+
+  /** Difference of mirrored heights at which a line no longer agrees */
+  static final float AGREEMENT_TOLERANCE = 0.1f;
+
+  /** Noise floor, for runs of identical values */
+  private static final double MIN_SIGMA = 1e-3;
+
+  private final int mPointCount;
+  private final int[] mEnds;
+  private final float[] mMeans;
+  /** Noise of the track, used when merging */
+  private final double mSigma;
+
+  private Segmentation(int pointCount, int[] ends, float[] means, double sigma) {
+    mPointCount = pointCount;
+    mEnds = ends;
+    mMeans = means;
+    mSigma = sigma;
+  }
+
+  int getPointCount() {
+    return mPointCount;
+  }
+
+  int getSegmentCount() {
+    return mEnds.length;
+  }
+
+  int getStart(int segment) {
+    return segment == 0 ? 0 : mEnds[segment - 1];
+  }
+
+  int getEnd(int segment) {
+    return mEnds[segment];
+  }
+
+  /** Mean mirrored BAF of a segment, in [0, 0.5]. */
+  float getMean(int segment) {
+    return mMeans[segment];
+  }
+
+  /** Segment holding a point. */
+  int segmentOf(int point) {
+    int low = 0;
+    int high = mEnds.length - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (mEnds[mid] <= point) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Mean mirrored BAF of the segments over the points [from, to), weighted
+   * by the number of points of each segment in the range. NaN if the range
+   * is empty. O(log n + k) for k segments in the range.
+   */
+  float meanOver(int from, int to) {
+    if (from >= to || mEnds.length == 0) {
+      return Float.NaN;
+    }
+    double sum = 0;
+    for (int s = segmentOf(from); s < mEnds.length && getStart(s) < to; s++) {
+      int count = Math.min(to, mEnds[s]) - Math.max(from, getStart(s));
+      sum += (double) mMeans[s] * count;
+    }
+    return (float) (sum / (to - from));
+  }
+
+  /**
+   * How well a selection matches the segmentation of <code>points</code>,
+   * from 1 when its mirrored height is the mean of the segments under it to
+   * 0 when it is AGREEMENT_TOLERANCE or more away. NaN if there are no
+   * points under it.
+   */
+  float agreement(PointStore points, Selection selection) {
+    int from = points.lowerBound(0, points.size(), selection.startOffset);
+    int to = points.upperBound(from, points.size(), selection.endOffset);
+    float mean = meanOver(from, to);
+    if (Float.isNaN(mean)) {
+      return mean;
+    }
+    float difference = Math.abs(Math.abs(selection.height - 0.5f) - mean);
+    return Math.max(0, 1 - difference / AGREEMENT_TOLERANCE);
+  }
+
+  /** Mirrored BAF of point <code>i</code>. */
+  private static float mirrored(PointStore points, int i) {
+    return Math.abs(points.value(i) - 0.5f);
+  }
+
+  /**
+   * Segments the points [from, to) of a store. The segment ends of the
+   * result are relative to <code>from</code>.
+   */
+  static Segmentation segment(PointStore points, int from, int to) {
+    int n = to - from;
+    if (n <= 0) {
+      return new Segmentation(0, new int[0], new float[0], MIN_SIGMA);
+    }
+    double[] prefix = new double[n + 1];
+    for (int i = 0; i < n; i++) {
+      prefix[i + 1] = prefix[i] + mirrored(points, from + i);
+    }
+    double sigma = noise(points, from, to);
+
+    int[] ends = new int[16];
+    int segments = 0;
+    // Runs still to split, as (start, end) pairs relative to from. The
+    // right half is pushed first so segments come out in order.
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = 0;
+    stack[top++] = n;
+    while (top > 0) {
+      int end = stack[--top];
+      int start = stack[--top];
+      int split = bestSplit(prefix, start, end, sigma);
+      if (split < 0) {
+        if (segments == ends.length) {
+          ends = Arrays.copyOf(ends, segments * 2);
+        }
+        ends[segments++] = end;
+        continue;
+      }
+      if (top + 4 > stack.length) {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+      }
+      stack[top++] = split;
+      stack[top++] = end;
+      stack[top++] = start;
+      stack[top++] = split;
+    }
+
+    ends = Arrays.copyOf(ends, segments);
+    float[] means = new float[segments];
+    for (int s = 0; s < segments; s++) {
+      int start = s == 0 ? 0 : ends[s - 1];
+      means[s] = (float) ((prefix[ends[s]] - prefix[start]) / (ends[s] - start));
+    }
+    return new Segmentation(n, ends, means, sigma);
+  }
+
+  /**
+   * Point in (start, end) maximizing the t statistic of the difference of
+   * the means on both sides, or -1 if no split is significant.
+   */
+  private static int bestSplit(double[] prefix, int start, int end,
+      double sigma) {
+    if (end - start < 2 * MIN_SEGMENT) {
+      return -1;
+    }
+    double total = prefix[end] - prefix[start];
+    int n = end - start;
+    double best = 0;
+    int bestSplit = -1;
+    for (int i = start + MIN_SEGMENT; i <= end - MIN_SEGMENT; i++) {
+      int left = i - start;
+      int right = n - left;
+      double leftSum = prefix[i] - prefix[start];
+      double difference = leftSum / left - (total - leftSum) / right;
+      // t^2 without the square root, times sigma^2
+      double t2 = difference * difference * left * right / n;
+      if (t2 > best) {
+        best = t2;
+        bestSplit = i;
+      }
+    }
+    double threshold = SPLIT_THRESHOLD * sigma;
+    return best > threshold * threshold ? bestSplit : -1;
+  }
+
+  /**
+   * Robust estimate of the noise standard deviation of the mirrored values:
+   * the median absolute difference of neighbours, scaled for a normal
+   * distribution.
+   */
+  private static double noise(PointStore points, int from, int to) {
+    int n = to - from - 1;
+    if (n < 1) {
+      return MIN_SIGMA;
+    }
+    float[] differences = new float[n];
+    for (int i = 0; i < n; i++) {
+      differences[i] = Math.abs(mirrored(points, from + i + 1)
+          - mirrored(points, from + i));
+    }
+    Arrays.sort(differences);
+    // MAD of a difference of two normals is 0.6745 * sqrt(2) sigma
+    double sigma = differences[n / 2] / (0.6745 * Math.sqrt(2));
+    return Math.max(sigma, MIN_SIGMA);
+  }
+
+  /**
+   * Joins the segmentations of consecutive chunks of a track, merging the
+   * two segments at each chunk boundary when they are not significantly
+   * different.
+   */
+  static Segmentation concat(Segmentation[] chunks) {
+    int total = 0;
+    int pointCount = 0;
+    double sigma = 0;
+    for (Segmentation chunk : chunks) {
+      total += chunk.getSegmentCount();
+      pointCount += chunk.mPointCount;
+      sigma += chunk.mSigma * chunk.mPointCount;
+    }
+    sigma = pointCount > 0 ? sigma / pointCount : MIN_SIGMA;
+    double threshold = SPLIT_THRESHOLD * sigma;
+
+    int[] ends = new int[total];
+    float[] means = new float[total];
+    int base = 0;
+    int segments = 0;
+    for (Segmentation chunk : chunks) {
+      for (int s = 0; s < chunk.getSegmentCount(); s++) {
+        int end = base + chunk.getEnd(s);
+        float mean = chunk.getMean(s);
+        if (s == 0 && segments > 0) {
+          int left = ends[segments - 1]
+              - (segments == 1 ? 0 : ends[segments - 2]);
+          int right = chunk.getEnd(0);
+          double difference = means[segments - 1] - mean;
+          double t2 = difference * difference * left * right / (left + right);
+          if (t2 <= threshold * threshold) {
+            means[segments - 1] = (float) (((double) means[segments - 1] * left
+                + (double) mean * right) / (left + right));
+            ends[segments - 1] = end;
+            continue;
+          }
+        }
+        ends[segments] = end;
+        means[segments] = mean;
+        segments++;
+      }
+      base += chunk.mPointCount;
+    }
+    return new Segmentation(pointCount, Arrays.copyOf(ends, segments),
+        Arrays.copyOf(means, segments), sigma);
+  }
+
+  /**
+   * Writes the segmentation with a key identifying the points it was
+   * computed from.
+   */
+  void write(OutputStream out, long key) throws IOException {
+    int segments = mEnds.length;
+    int size = HEADER_SIZE + segments * 8;
+    ByteBuffer buf = ByteBuffer.allocate(size + TRAILER_SIZE).order(
+        ByteOrder.LITTLE_ENDIAN);
+    buf.putInt(MAGIC).putInt(VERSION).putLong(key).putInt(mPointCount)
+        .putInt(segments);
+    for (int s = 0; s < segments; s++) {
+      buf.putInt(mEnds[s]);
+    }
+    for (int s = 0; s < segments; s++) {
+      buf.putFloat(mMeans[s]);
+    }
+    buf.putInt(checksum(buf, size));
+    out.write(buf.array(), 0, buf.position());
+  }
+
+  /**
+   * Reads a segmentation written with {@link #write}.
+   *
+   * @throws IOException
+   *           if the data is corrupt or was written for another key
+   */
+  static Segmentation read(ByteBuffer buffer, long key) throws IOException {
+    ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int size = buf.remaining();
+    if (size < HEADER_SIZE + TRAILER_SIZE || buf.getInt(0) != MAGIC) {
+      throw new IOException("Not a segmentation file");
+    }
+    if (buf.getInt(4) != VERSION) {
+      throw new IOException("Unsupported segmentation version " + buf.getInt(4));
+    }
+    if (buf.getLong(8) != key) {
+      throw new IOException("Segmentation of other points");
+    }
+    int pointCount = buf.getInt(16);
+    int segments = buf.getInt(20);
+    if (segments < 0 || HEADER_SIZE + segments * 8L != size - TRAILER_SIZE) {
+      throw new IOException("Corrupt segmentation header");
+    }
+    if (checksum(buf, size - TRAILER_SIZE) != buf.getInt(size - TRAILER_SIZE)) {
+      throw new IOException("Segmentation checksum mismatch");
+    }
+    int[] ends = new int[segments];
+    float[] means = new float[segments];
+    buf.position(HEADER_SIZE);
+    buf.asIntBuffer().get(ends);
+    buf.position(HEADER_SIZE + segments * 4);
+    buf.asFloatBuffer().get(means);
+    int previous = 0;
+    for (int s = 0; s < segments; s++) {
+      if (ends[s] <= previous || ends[s] > pointCount) {
+        throw new IOException("Corrupt segment " + s);
+      }
+      previous = ends[s];
+    }
+    if (previous != pointCount) {
+      throw new IOException("Segments do not cover the points");
+    }
+    return new Segmentation(pointCount, ends, means, MIN_SIGMA);
+  }
+
+  /**
+   * Key of a point store for {@link #write} and {@link #read}: a CRC32 of
+   * its positions and values and the number of points.
+   */
+  static long key(PointStore points) {
+    CRC32 crc = new CRC32();
+    byte[] bytes = new byte[4096];
+    ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    int size = points.size();
+    for (int i = 0; i < size;) {
+      buf.clear();
+      int count = Math.min(size - i, bytes.length / 8);
+      for (int j = i; j < i + count; j++) {
+        buf.putInt(points.position(j)).putFloat(points.value(j));
+      }
+      crc.update(bytes, 0, count * 8);
+      i += count;
+    }
+    return (long) size << 32 | crc.getValue();
+  }
+
+  private static int checksum(ByteBuffer buf, int length) {
+    CRC32 crc = new CRC32();
+    if (buf.hasArray()) {
+      crc.update(buf.array(), buf.arrayOffset(), length);
+    } else {
+      byte[] chunk = new byte[8192];
+      ByteBuffer data = buf.duplicate();
+      data.position(0);
+      for (int done = 0; done < length; done += chunk.length) {
+        int n = Math.min(chunk.length, length - done);
+        data.get(chunk, 0, n);
+        crc.update(chunk, 0, n);
+      }
+    }
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,170 @@
+package org.cruk.genesnap;
+
+import static org.cruk.genesnap.Segmentation.CHUNK_POINTS;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Computes the reference {@link Segmentation} of datasets in the
+ * background, and keeps it in a file per dataset so it is only computed
+ * once.
+ *
+ * A dataset is cut into chunks of {@link Segmentation#CHUNK_POINTS} points which are segmented in
+ * parallel on a pool of background priority threads; the last chunk to
+ * finish joins them. Chunks of several datasets share the pool.
+ */
+final class SegmentationEngine {
+
+  private static final String TAG = SegmentationEngine.class.getName();
+
+  interface Callback {
+    /**
+     * Called on a pool thread once the segmentation of <code>points</code>
+     * is known.
+     */
+    void onSegmented(PointStore points, Segmentation segmentation);
+  }
+
+  private final File mDirectory;
+  private final ExecutorService mExecutor;
+
+  /**
+   * @param directory
+   *          where to keep the segmentation files
+   */
+  SegmentationEngine(File directory) {
+    mDirectory = directory;
+    int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+          }
+        }, "Segmentation-" + mCount.incrementAndGet());
+      }
+    });
+  }
+
+  /**
+   * Reads the segmentation of a dataset from its file, or computes it and
+   * writes the file, then hands it to <code>callback</code>.
+   */
+  void segment(final int datasetId, final PointStore points,
+      final Callback callback) {
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        long key = Segmentation.key(points);
+        File file = file(datasetId);
+        Segmentation segmentation = read(file, key);
+        if (segmentation != null) {
+          callback.onSegmented(points, segmentation);
+        } else {
+          fork(datasetId, points, key, callback);
+        }
+      }
+    });
+  }
+
+  /** Stops the pool, dropping the work not started yet. */
+  void shutdown() {
+    mExecutor.shutdownNow();
+  }
+
+  private File file(int datasetId) {
+    return new File(mDirectory, "dataset-" + datasetId + ".seg");
+  }
+
+  /** Submits one task per chunk, the last one to finish joins them all. */
+  private void fork(final int datasetId, final PointStore points, final long key,
+      final Callback callback) {
+    final long start = System.nanoTime();
+    int pointCount = points.size();
+    int chunkCount = Math.max(1, (pointCount + CHUNK_POINTS - 1) / CHUNK_POINTS);
+    final Segmentation[] chunks = new Segmentation[chunkCount];
+    final AtomicInteger remaining = new AtomicInteger(chunkCount);
+    for (int c = 0; c < chunkCount; c++) {
+      final int chunk = c;
+      final int from = c * CHUNK_POINTS;
+      final int to = Math.min(pointCount, from + CHUNK_POINTS);
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          chunks[chunk] = Segmentation.segment(points, from, to);
+          // The counter publishes the chunks to the thread that joins them
+          if (remaining.decrementAndGet() == 0) {
+            Segmentation segmentation = Segmentation.concat(chunks);
+            Log.d(TAG, "Segmented dataset " + datasetId + " into "
+                + segmentation.getSegmentCount() + " segments in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+            write(file(datasetId), segmentation, key);
+            callback.onSegmented(points, segmentation);
+          }
+        }
+      });
+    }
+  }
+
+  /** Segmentation in <code>file</code> if it is valid for the key. */
+  private static Segmentation read(File file, long key) {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      FileInputStream in = new FileInputStream(file);
+      try {
+        FileChannel channel = in.getChannel();
+        return Segmentation.read(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), key);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Recomputing segmentation, could not use " + file + ": "
+          + e.getMessage());
+      return null;
+    }
+  }
+
+  /** Writes to a temporary file first so a crash never leaves half a file. */
+  private static void write(File file, Segmentation segmentation, long key) {
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Could not create " + directory);
+      return;
+    }
+    File tmp = new File(directory, file.getName() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        segmentation.write(out, key);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write " + file, e);
+      tmp.delete();
+    }
+  }
+}
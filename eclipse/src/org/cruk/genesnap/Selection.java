@@ -0,0 +1,126 @@
+package org.cruk.genesnap;
+
+/**
+ * A line drawn by the player over the plot, and its mirror image.
+ * Offsets are in canvas pixels from the start of the data.
+ */
+class Selection {
+  private static final float MIDDLE_SNAP_WIDTH = 0.05f;
+  static final float FAT_ANIMATION_LENGTH = 400;
+  static final float FAT_LINE_CANVAS_HEIGHT_PORTION = 0.07f;
+  private static final float LINE_WIDTH_FOR_SCORE = 0.028f;
+
+  static final float ALPHA_BASE = 0.3f;
+  static final float ALPHA_1_SCORE = 0.7f;
+
+  public float startOffset;
+  public final float height;
+  public float endOffset;
+  public long fatStartTime;
+  public float score;
+  /** Points counted by the last {@link #calculateScore} */
+  public int intersectCount;
+  /**
+   * Set whenever the extent of the selection changes, cleared once its
+   * score has been recalculated.
+   */
+  public boolean dirty;
+  /**
+   * The value of mPoinsOffset when the selection was created.
+   * Used to reduce the number of points we go through when calculating a score
+   * for this selection.
+   */
+  public final int pointsArrayOffset;
+
+  public Selection(float startOffset, float endOffset, float height, int pointsArrayOffset) {
+    super();
+    if (startOffset <= endOffset) {
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+    } else {
+      this.startOffset = endOffset;
+      this.endOffset = startOffset;
+    }
+    this.pointsArrayOffset = pointsArrayOffset;
+    if (height > 0.5 - MIDDLE_SNAP_WIDTH && height < 0.5 + MIDDLE_SNAP_WIDTH) {
+      height = 0.5f;
+    }
+    this.height = height;
+    fatStartTime = -1;
+    score = 1;
+    dirty = true;
+  }
+
+  /**
+   * Recounts the points under this selection, updating {@link #score} and
+   * {@link #intersectCount}.
+   *
+   * @see #countIntersections(Viewport)
+   */
+  public int calculateScore(Viewport viewport) {
+    intersectCount = countIntersections(viewport);
+    score = intersectCount / length();
+    return intersectCount;
+  }
+
+  /**
+   * Counts the points within {@link #LINE_WIDTH_FOR_SCORE} of this
+   * selection. The points covered by the selection are found by binary
+   * search, within the visible range when possible, so this is
+   * O(log n + k) for k points under the selection. Points must be sorted by
+   * position.
+   */
+  public int countIntersections(Viewport viewport) {
+    PointStore points = viewport.getPoints();
+    int intersectCount = 0;
+    int first = viewport.lowerBound(pointsArrayOffset, startOffset);
+    int last = viewport.upperBound(first, endOffset);
+    for (int i = first; i < last; i++) {
+      if (Math.abs(points.value(i) - height) < LINE_WIDTH_FOR_SCORE) {
+        intersectCount++;
+      }
+    }
+    return intersectCount;
+  }
+
+  public float length() {
+    return (endOffset - startOffset);
+  }
+
+  public Selection intersectInPlace(Selection lineThatLoses) {
+    if (lineThatLoses.startOffset >= endOffset || lineThatLoses.endOffset <= startOffset) {
+      // No intersection
+      return null;
+    }
+//      Log.v(TAG, "intersectInPlace: (" + startOffset + ", " + endOffset + ") (" + lineThatLoses.startOffset + ", " + lineThatLoses.endOffset + ")");
+    if (lineThatLoses.startOffset < startOffset && lineThatLoses.endOffset < endOffset) {
+//        Log.v(TAG, "Case 1");
+      lineThatLoses.endOffset = startOffset;
+      lineThatLoses.dirty = true;
+      return null;
+    }
+    if (lineThatLoses.startOffset > startOffset && lineThatLoses.endOffset > endOffset) {
+//        Log.v(TAG, "Case 2");
+      lineThatLoses.startOffset = endOffset;
+      lineThatLoses.dirty = true;
+      return null;
+    }
+    if (lineThatLoses.startOffset > startOffset && lineThatLoses.endOffset < endOffset) {
+//        Log.v(TAG, "Case 3");
+//        Log.v(TAG, "killing the line");
+      // The line "dissapears"
+      lineThatLoses.startOffset = endOffset;
+      lineThatLoses.endOffset = endOffset;
+      lineThatLoses.dirty = true;
+      return null;
+    } else {
+//        Log.v(TAG, "Case 4");
+      // Split the line
+      Selection rightRemainder = new Selection(
+          endOffset, lineThatLoses.endOffset, lineThatLoses.height, pointsArrayOffset);
+      lineThatLoses.endOffset = startOffset;
+      lineThatLoses.dirty = true;
+      return rightRemainder;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package org.cruk.genesnap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The selections of a round and their score: the line being dragged, the
+ * lines already entered, how they cut each other and the running total of
+ * points under them.
+ *
+ * Offsets are canvas offsets, as in {@link Selection}. Not thread safe.
+ */
+final class SelectionBoard {
+
+  /** Selections the user has entered already */
+  private final SelectionStore mSelections = new SelectionStore();
+
+  /**
+   * Maintained while the user is dragging and creating a new Selection.
+   * Kept out of mSelections until the drag is over.
+   */
+  private Selection mSelectionInProgress;
+
+  /** Offset where the drag of mSelectionInProgress started */
+  private float mSelectionAnchor;
+
+  /** Offset of the last touch sample, see {@link #touch} */
+  private float mLastTouchOffset;
+
+  /** Selections that may need rescoring, drained by rescore */
+  private final ArrayList<Selection> mDirtySelections = new ArrayList<Selection>();
+
+  /** Scratch lists for the selection store queries */
+  private final ArrayList<Selection> mOverlappingSelections = new ArrayList<Selection>();
+  private final ArrayList<Selection> mRemainders = new ArrayList<Selection>();
+
+  /**
+   * Sum of the intersectCount of all the selections in mSelections and of
+   * mSelectionInProgress
+   */
+  private int mScore;
+
+  /** Forgets all the selections. */
+  void clear() {
+    mSelections.clear();
+    mSelectionInProgress = null;
+    mDirtySelections.clear();
+    mScore = 0;
+  }
+
+  /** The line being dragged, null if there is none. */
+  Selection getSelectionInProgress() {
+    return mSelectionInProgress;
+  }
+
+  /** Number of lines entered, not counting the one being dragged. */
+  int size() {
+    return mSelections.size();
+  }
+
+  /** Score as of the last {@link #rescore}. */
+  int getScore() {
+    return mScore;
+  }
+
+  /**
+   * Applies a touch sample made while the screen showed the canvas offsets
+   * up to <code>canvasOffset</code>. A down while a line is being dragged
+   * first enters that line where the finger last was, as its up was lost.
+   *
+   * @param action
+   *          one of the TouchRing actions
+   * @param x
+   *          position of the sample on the surface
+   * @param y
+   *          position of the sample on the surface
+   * @param pointsOffset
+   *          index of the first point on screen
+   * @return the line entered by the sample, or null
+   */
+  Selection touch(int action, float x, float y, float canvasOffset,
+      int canvasWidth, int canvasHeight, int pointsOffset) {
+    float offset = canvasOffset - canvasWidth + x;
+    float height = (y - 10) / canvasHeight;
+    Selection entered = null;
+    switch (action) {
+    case TouchRing.ACTION_DOWN:
+      if (mSelectionInProgress != null) {
+        entered = up(mLastTouchOffset);
+      }
+      down(offset, height, pointsOffset);
+      break;
+    case TouchRing.ACTION_MOVE:
+      // No drag after a lost down, or one cleared by clear()
+      if (mSelectionInProgress != null) {
+        move(offset);
+      }
+      break;
+    case TouchRing.ACTION_UP:
+      if (mSelectionInProgress != null) {
+        entered = up(offset);
+      }
+      break;
+    }
+    mLastTouchOffset = offset;
+    return entered;
+  }
+
+  /**
+   * Starts dragging a new line.
+   *
+   * @param pointsOffset
+   *          index of the first point on screen
+   */
+  void down(float offset, float height, int pointsOffset) {
+    mSelectionInProgress = new Selection(offset, offset, height, pointsOffset);
+    mSelectionAnchor = offset;
+    mDirtySelections.add(mSelectionInProgress);
+  }
+
+  /**
+   * Drags the line to <code>offset</code>, trimming or splitting the lines
+   * under it.
+   */
+  void move(float offset) {
+    extendSelectionInProgress(offset);
+    resolveOverlaps(mSelectionInProgress);
+  }
+
+  /**
+   * Ends the drag at <code>offset</code> and enters the line.
+   *
+   * @return the line entered
+   */
+  Selection up(float offset) {
+    Selection selection = mSelectionInProgress;
+    extendSelectionInProgress(offset);
+    mSelections.add(selection);
+    mSelectionInProgress = null;
+    return selection;
+  }
+
+  /**
+   * Recounts the points under the selections that changed since the last
+   * call.
+   *
+   * @return the new score
+   */
+  int rescore(Viewport viewport) {
+    int score = mScore;
+    for (int i = 0; i < mDirtySelections.size(); i++) {
+      Selection selection = mDirtySelections.get(i);
+      if (selection.dirty) {
+        selection.dirty = false;
+        score -= selection.intersectCount;
+        score += selection.calculateScore(viewport);
+      }
+    }
+    mDirtySelections.clear();
+    mScore = score;
+    return score;
+  }
+
+  /**
+   * Appends to <code>out</code> the lines entered that overlap the offsets
+   * (from, to), leaving out the one being dragged.
+   */
+  void collectVisible(float from, float to, List<Selection> out) {
+    mSelections.collectOverlapping(from, to, out);
+  }
+
+  /**
+   * Moves the free end of the selection being dragged to
+   * <code>offset</code>, keeping startOffset <= endOffset whichever way the
+   * finger goes.
+   */
+  private void extendSelectionInProgress(float offset) {
+    Selection selection = mSelectionInProgress;
+    selection.startOffset = Math.min(mSelectionAnchor, offset);
+    selection.endOffset = Math.max(mSelectionAnchor, offset);
+    if (!selection.dirty) {
+      selection.dirty = true;
+      mDirtySelections.add(selection);
+    }
+  }
+
+  /**
+   * Trims or splits the stored selections overlapping <code>winner</code>,
+   * and drops the ones left with no length.
+   */
+  private void resolveOverlaps(Selection winner) {
+    ArrayList<Selection> removed = mOverlappingSelections;
+    mSelections.removeEmpty(removed);
+    for (int i = 0; i < removed.size(); i++) {
+      dropSelection(removed.get(i));
+    }
+    removed.clear();
+
+    ArrayList<Selection> remainders = mRemainders;
+    mSelections.removeOverlapping(winner.startOffset, winner.endOffset, removed);
+    for (int i = 0; i < removed.size(); i++) {
+      Selection selection = removed.get(i);
+      boolean queued = selection.dirty;
+      Selection rightRemainder = winner.intersectInPlace(selection);
+      if (rightRemainder != null) {
+        // More than one when the lines under the drag overlap each other
+        remainders.add(rightRemainder);
+      }
+      if (selection.length() == 0) {
+        dropSelection(selection);
+      } else {
+        mSelections.add(selection);
+        if (!queued) {
+          mDirtySelections.add(selection);
+        }
+      }
+    }
+    removed.clear();
+    for (int i = 0; i < remainders.size(); i++) {
+      Selection rightRemainder = remainders.get(i);
+      if (rightRemainder.length() > 0) {
+        mSelections.add(rightRemainder);
+        mDirtySelections.add(rightRemainder);
+      }
+    }
+    remainders.clear();
+  }
+
+  /** Takes the score of a selection taken out of mSelections off mScore. */
+  private void dropSelection(Selection selection) {
+    mScore -= selection.intersectCount;
+    // Not to be rescored if it is still queued in mDirtySelections
+    selection.dirty = false;
+  }
+}
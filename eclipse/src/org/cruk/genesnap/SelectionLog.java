@@ -0,0 +1,211 @@
+package org.cruk.genesnap;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cruk.genesnap.SelectionLogFile.Record;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Records the selections players enter to a {@link SelectionLogFile}.
+ *
+ * {@link #append} only puts the record on a lock-free queue and wakes the
+ * writer thread, so it never blocks the thread that calls it. The writer
+ * drains the queue into one batch at a time, appends it and syncs the file
+ * before taking the next one.
+ *
+ * There is one log per file in the process, see {@link #open}: two writers
+ * appending to the same file through their own channels would overwrite
+ * each other's batches.
+ */
+final class SelectionLog {
+
+  private static final String TAG = SelectionLog.class.getName();
+
+  private final File mFile;
+  private final ConcurrentLinkedQueue<Record> mQueue = new ConcurrentLinkedQueue<Record>();
+  private final Thread mWriter;
+  private volatile boolean mClosed;
+
+  /** Logs of the process that are not closed, by path */
+  private static final HashMap<String, SelectionLog> sOpen = new HashMap<String, SelectionLog>();
+
+  /**
+   * The log of <code>file</code>, opened and its writer started on the first
+   * call, shared by the following ones until it is closed. Survives the
+   * activities that use it, so it is only closed when the app is done.
+   */
+  static SelectionLog open(File file) {
+    synchronized (sOpen) {
+      SelectionLog log = sOpen.get(file.getPath());
+      if (log == null) {
+        log = new SelectionLog(file);
+        sOpen.put(file.getPath(), log);
+      }
+      return log;
+    }
+  }
+
+  private SelectionLog(File file) {
+    mFile = file;
+    mWriter = new Thread("SelectionLog") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        write();
+      }
+    };
+    mWriter.start();
+  }
+
+  /** Queues a record to be written. Can be called from any thread. */
+  void append(Record record) {
+    if (mClosed) {
+      return;
+    }
+    mQueue.offer(record);
+    LockSupport.unpark(mWriter);
+    // Closed since the check, the writer may have gone without this record
+    if (mClosed && mQueue.remove(record)) {
+      Log.w(TAG, "Log closed, dropped a selection ending at " + record.time);
+    }
+  }
+
+  /**
+   * Writes the records queued so far, then stops the writer and waits for
+   * it, so the file can be opened again by the next {@link #open}.
+   */
+  void close() {
+    synchronized (sOpen) {
+      if (sOpen.get(mFile.getPath()) == this) {
+        sOpen.remove(mFile.getPath());
+      }
+      mClosed = true;
+      LockSupport.unpark(mWriter);
+      boolean interrupted = false;
+      while (mWriter.isAlive()) {
+        try {
+          mWriter.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void write() {
+    RandomAccessFile file = null;
+    try {
+      file = open();
+    } catch (IOException e) {
+      Log.e(TAG, "Could not open " + mFile + ", selections will not be kept", e);
+    }
+    ArrayList<Record> batch = new ArrayList<Record>();
+    ByteBuffer buf = ByteBuffer.allocate(
+        SelectionLogFile.batchSize(SelectionLogFile.MAX_BATCH_RECORDS)).order(
+        ByteOrder.LITTLE_ENDIAN);
+    while (true) {
+      Record record;
+      while (batch.size() < SelectionLogFile.MAX_BATCH_RECORDS
+          && (record = mQueue.poll()) != null) {
+        batch.add(record);
+      }
+      if (batch.isEmpty()) {
+        if (mClosed) {
+          break;
+        }
+        // Woken by append or close, spuriously at worst
+        LockSupport.park(this);
+        continue;
+      }
+      if (file != null) {
+        buf.clear();
+        SelectionLogFile.putBatch(buf, batch);
+        buf.flip();
+        try {
+          FileChannel channel = file.getChannel();
+          while (buf.hasRemaining()) {
+            channel.write(buf);
+          }
+          channel.force(false);
+        } catch (IOException e) {
+          Log.e(TAG, "Could not append " + batch.size() + " selections to "
+              + mFile, e);
+        }
+      }
+      batch.clear();
+    }
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Exception closing " + mFile, e);
+      }
+    }
+  }
+
+  /**
+   * Opens the log positioned for appending. A batch torn by the process
+   * dying mid write is cut off, a file that is not a log is moved aside.
+   */
+  private RandomAccessFile open() throws IOException {
+    long validLength = 0;
+    if (mFile.length() > 0) {
+      InputStream in = new FileInputStream(mFile);
+      try {
+        SelectionLogFile.Reader reader = new SelectionLogFile.Reader(
+            new BufferedInputStream(in));
+        int count = 0;
+        while (reader.next() != null) {
+          count++;
+        }
+        validLength = reader.getValidLength();
+        Log.d(TAG, count + " selections in " + mFile
+            + (reader.isTorn() ? ", cutting off a torn batch" : ""));
+      } catch (IOException e) {
+        Log.w(TAG, "Starting a new log, keeping " + mFile + " aside", e);
+      } finally {
+        in.close();
+      }
+      if (validLength == 0 && !mFile.renameTo(new File(mFile.getPath() + ".bad"))) {
+        throw new IOException("Could not move " + mFile + " aside");
+      }
+    }
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    try {
+      FileChannel channel = file.getChannel();
+      if (validLength == 0) {
+        ByteBuffer header = ByteBuffer.allocate(SelectionLogFile.HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        SelectionLogFile.putHeader(header);
+        header.flip();
+        channel.truncate(0);
+        channel.write(header, 0);
+        validLength = SelectionLogFile.HEADER_SIZE;
+      }
+      channel.truncate(validLength);
+      channel.position(validLength);
+      channel.force(false);
+      return file;
+    } catch (IOException e) {
+      file.close();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of the selections players entered.
+ *
+ * Layout, all little-endian:
+ *
+ * <pre>
+ * header   magic "GSSL", version                                 (8 bytes)
+ * batch    BATCH_MAGIC, record count                             (8 bytes)
+ *          records                                   (RECORD_SIZE bytes each)
+ *          CRC32 of the records                                  (4 bytes)
+ * record   time and round start, ms since the epoch, chromosome code,
+ *          start and end genomic position, height              (32 bytes)
+ * </pre>
+ *
+ * Batches follow each other until the end of the file. Each is appended in
+ * one write, so a batch torn by the process dying mid write fails its
+ * checksum; readers stop there, and writers append over it.
+ */
+public final class SelectionLogFile {
+
+  /** "GSSL" read as a little-endian int. */
+  public static final int MAGIC = 0x4c535347;
+  public static final int VERSION = 1;
+
+  /** "GSSB" read as a little-endian int. */
+  private static final int BATCH_MAGIC = 0x42535347;
+
+  public static final int HEADER_SIZE = 8;
+  private static final int BATCH_HEADER_SIZE = 8;
+  private static final int BATCH_TRAILER_SIZE = 4;
+  public static final int RECORD_SIZE = 32;
+
+  /** More records than this in a batch can only come from a corrupt count */
+  public static final int MAX_BATCH_RECORDS = 4096;
+
+  /** One selection, as entered. */
+  public static final class Record {
+    /** When the drag ended, ms since the epoch */
+    public final long time;
+    /** When the round started, ms since the epoch; the same for a round */
+    public final long round;
+    /** Chromosome code, see {@link BafParser#chromosomeCode} */
+    public final int chromosome;
+    /** Genomic positions of the ends, start <= end */
+    public final int start;
+    public final int end;
+    /** Height on the canvas, 0 at the top and 1 at the bottom */
+    public final float height;
+
+    public Record(long time, long round, int chromosome, int start, int end,
+        float height) {
+      this.time = time;
+      this.round = round;
+      this.chromosome = chromosome;
+      this.start = start;
+      this.end = end;
+      this.height = height;
+    }
+  }
+
+  private SelectionLogFile() {
+  }
+
+  /** Puts the header that starts every log. */
+  public static void putHeader(ByteBuffer buf) {
+    buf.putInt(MAGIC).putInt(VERSION);
+  }
+
+  /** Bytes taken by a batch of <code>count</code> records. */
+  public static int batchSize(int count) {
+    return BATCH_HEADER_SIZE + count * RECORD_SIZE + BATCH_TRAILER_SIZE;
+  }
+
+  /**
+   * Puts a batch of <code>records.size()</code> records, at most
+   * MAX_BATCH_RECORDS, at the position of a little-endian buffer.
+   */
+  public static void putBatch(ByteBuffer buf, List<Record> records) {
+    buf.putInt(BATCH_MAGIC).putInt(records.size());
+    int start = buf.position();
+    for (int i = 0; i < records.size(); i++) {
+      Record record = records.get(i);
+      buf.putLong(record.time).putLong(record.round).putInt(record.chromosome)
+          .putInt(record.start).putInt(record.end).putFloat(record.height);
+    }
+    buf.putInt(checksum(buf, start, buf.position() - start));
+  }
+
+  private static int checksum(ByteBuffer buf, int start, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(buf.array(), buf.arrayOffset() + start, length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Reads a log record by record, one batch at a time. Stops at the end of
+   * the stream or at the first torn or corrupt batch.
+   */
+  public static final class Reader {
+
+    private final InputStream mIn;
+    private final ByteBuffer mBatch = ByteBuffer.allocate(
+        batchSize(MAX_BATCH_RECORDS)).order(ByteOrder.LITTLE_ENDIAN);
+    private int mRemaining;
+    private long mValidLength = HEADER_SIZE;
+    private boolean mTorn;
+
+    /**
+     * Reads the header. The stream is not closed.
+     *
+     * @throws IOException
+     *           if the stream does not start with a log header
+     */
+    public Reader(InputStream in) throws IOException {
+      mIn = in;
+      if (readFully(HEADER_SIZE) < HEADER_SIZE) {
+        throw new IOException("Truncated selection log header");
+      }
+      int magic = mBatch.getInt();
+      int version = mBatch.getInt();
+      if (magic != MAGIC) {
+        throw new IOException("Not a selection log, magic " + Integer.toHexString(magic));
+      }
+      if (version != VERSION) {
+        throw new IOException("Unsupported selection log version " + version);
+      }
+    }
+
+    /** Next record, or null at the end of the valid batches. */
+    public Record next() throws IOException {
+      while (mRemaining == 0) {
+        if (mTorn || !readBatch()) {
+          return null;
+        }
+      }
+      mRemaining--;
+      return new Record(mBatch.getLong(), mBatch.getLong(), mBatch.getInt(),
+          mBatch.getInt(), mBatch.getInt(), mBatch.getFloat());
+    }
+
+    /** Bytes from the start of the log to the end of the last valid batch. */
+    public long getValidLength() {
+      return mValidLength;
+    }
+
+    /** Whether reading stopped at a torn or corrupt batch. */
+    public boolean isTorn() {
+      return mTorn;
+    }
+
+    private boolean readBatch() throws IOException {
+      int n = readFully(BATCH_HEADER_SIZE);
+      if (n == 0) {
+        return false;
+      }
+      int count = n == BATCH_HEADER_SIZE && mBatch.getInt() == BATCH_MAGIC
+          ? mBatch.getInt() : -1;
+      if (count < 0 || count > MAX_BATCH_RECORDS) {
+        mTorn = true;
+        return false;
+      }
+      int length = count * RECORD_SIZE;
+      if (readFully(length + BATCH_TRAILER_SIZE) < length + BATCH_TRAILER_SIZE
+          || mBatch.getInt(length) != checksum(mBatch, 0, length)) {
+        mTorn = true;
+        return false;
+      }
+      mBatch.limit(length);
+      mRemaining = count;
+      mValidLength += batchSize(count);
+      return true;
+    }
+
+    /**
+     * Reads up to <code>length</code> bytes into mBatch, leaving it ready to
+     * get them.
+     *
+     * @return the number of bytes read, less than length only at the end of
+     *         the stream
+     */
+    private int readFully(int length) throws IOException {
+      byte[] array = mBatch.array();
+      int n = 0;
+      while (n < length) {
+        int read = mIn.read(array, n, length - n);
+        if (read < 0) {
+          break;
+        }
+        n += read;
+      }
+      mBatch.position(0).limit(n);
+      return n;
+    }
+  }
+}
@@ -0,0 +1,250 @@
+package org.cruk.genesnap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The selections the player has entered, kept in an interval tree so the
+ * ones overlapping a range of offsets are found in O(log n + k) instead of
+ * walking every selection.
+ *
+ * The tree is an AVL tree ordered by start offset, every node also keeping
+ * the largest end offset of its subtree. A selection must not be changed
+ * while it is in the store: take it out with {@link #removeOverlapping},
+ * change it and add it back.
+ *
+ * Not thread safe.
+ */
+final class SelectionStore {
+
+  private static final class Node {
+    final Selection selection;
+    /** Offsets of the selection when it was added */
+    final float start;
+    final float end;
+    /** Order of insertion, breaks ties between equal starts */
+    final long sequence;
+    /** Largest end offset in the subtree */
+    float maxEnd;
+    int height = 1;
+    Node left;
+    Node right;
+
+    Node(Selection selection, long sequence) {
+      this.selection = selection;
+      this.start = selection.startOffset;
+      this.end = selection.endOffset;
+      this.sequence = sequence;
+      this.maxEnd = end;
+    }
+  }
+
+  private Node mRoot;
+  private int mSize;
+  private long mSequence;
+
+  /** Number of zero length selections in the tree */
+  private int mEmpty;
+
+  /** Nodes found by the last query, kept to avoid allocating */
+  private final ArrayList<Node> mFound = new ArrayList<Node>();
+
+  int size() {
+    return mSize;
+  }
+
+  void clear() {
+    mRoot = null;
+    mSize = 0;
+    mEmpty = 0;
+  }
+
+  void add(Selection selection) {
+    mRoot = insert(mRoot, new Node(selection, mSequence++));
+    mSize++;
+    if (selection.length() == 0) {
+      mEmpty++;
+    }
+  }
+
+  /**
+   * Appends to <code>out</code>, in order of start offset, the selections
+   * that overlap the open range (start, end): the ones with
+   * <code>startOffset < end && endOffset > start</code>.
+   */
+  void collectOverlapping(float start, float end, List<Selection> out) {
+    find(mRoot, start, end, false);
+    for (int i = 0; i < mFound.size(); i++) {
+      out.add(mFound.get(i).selection);
+    }
+    mFound.clear();
+  }
+
+  /**
+   * Same as {@link #collectOverlapping} but also takes the selections out of
+   * the store.
+   *
+   * @return the number of selections removed
+   */
+  int removeOverlapping(float start, float end, List<Selection> out) {
+    find(mRoot, start, end, false);
+    return removeFound(out);
+  }
+
+  /**
+   * Takes out all the zero length selections, appending them to
+   * <code>out</code>.
+   *
+   * @return the number of selections removed
+   */
+  int removeEmpty(List<Selection> out) {
+    if (mEmpty == 0) {
+      return 0;
+    }
+    find(mRoot, 0, 0, true);
+    return removeFound(out);
+  }
+
+  private int removeFound(List<Selection> out) {
+    int count = mFound.size();
+    for (int i = 0; i < count; i++) {
+      Node node = mFound.get(i);
+      mRoot = delete(mRoot, node);
+      mSize--;
+      if (node.start == node.end) {
+        mEmpty--;
+      }
+      out.add(node.selection);
+    }
+    mFound.clear();
+    return count;
+  }
+
+  /**
+   * Collects into mFound, in order, the nodes overlapping (start, end), or
+   * the zero length ones if <code>empty</code> is set.
+   */
+  private void find(Node node, float start, float end, boolean empty) {
+    while (node != null) {
+      if (!empty && node.maxEnd <= start) {
+        return;
+      }
+      find(node.left, start, end, empty);
+      if (empty ? node.start == node.end : node.start < end && node.end > start) {
+        mFound.add(node);
+      }
+      if (!empty && node.start >= end) {
+        // Everything to the right starts even later
+        return;
+      }
+      node = node.right;
+    }
+  }
+
+  private static int compare(Node a, Node b) {
+    int c = Float.compare(a.start, b.start);
+    if (c != 0) {
+      return c;
+    }
+    return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0 : 1;
+  }
+
+  private static Node insert(Node root, Node node) {
+    if (root == null) {
+      return node;
+    }
+    if (compare(node, root) < 0) {
+      root.left = insert(root.left, node);
+    } else {
+      root.right = insert(root.right, node);
+    }
+    return balance(root);
+  }
+
+  private static Node delete(Node root, Node node) {
+    if (root == null) {
+      return null;
+    }
+    int c = compare(node, root);
+    if (c < 0) {
+      root.left = delete(root.left, node);
+    } else if (c > 0) {
+      root.right = delete(root.right, node);
+    } else {
+      if (root.left == null) {
+        return root.right;
+      }
+      if (root.right == null) {
+        return root.left;
+      }
+      Node successor = root.right;
+      while (successor.left != null) {
+        successor = successor.left;
+      }
+      successor.right = deleteMin(root.right);
+      successor.left = root.left;
+      root = successor;
+    }
+    return balance(root);
+  }
+
+  private static Node deleteMin(Node root) {
+    if (root.left == null) {
+      return root.right;
+    }
+    root.left = deleteMin(root.left);
+    return balance(root);
+  }
+
+  private static int height(Node node) {
+    return node == null ? 0 : node.height;
+  }
+
+  private static void update(Node node) {
+    node.height = Math.max(height(node.left), height(node.right)) + 1;
+    float maxEnd = node.end;
+    if (node.left != null && node.left.maxEnd > maxEnd) {
+      maxEnd = node.left.maxEnd;
+    }
+    if (node.right != null && node.right.maxEnd > maxEnd) {
+      maxEnd = node.right.maxEnd;
+    }
+    node.maxEnd = maxEnd;
+  }
+
+  private static Node balance(Node node) {
+    update(node);
+    int factor = height(node.left) - height(node.right);
+    if (factor > 1) {
+      if (height(node.left.left) < height(node.left.right)) {
+        node.left = rotateLeft(node.left);
+      }
+      return rotateRight(node);
+    }
+    if (factor < -1) {
+      if (height(node.right.right) < height(node.right.left)) {
+        node.right = rotateRight(node.right);
+      }
+      return rotateLeft(node);
+    }
+    return node;
+  }
+
+  private static Node rotateRight(Node node) {
+    Node left = node.left;
+    node.left = left.right;
+    left.right = node;
+    update(node);
+    update(left);
+    return left;
+  }
+
+  private static Node rotateLeft(Node node) {
+    Node right = node.right;
+    node.right = right.left;
+    right.left = node;
+    update(node);
+    update(right);
+    return right;
+  }
+}
@@ -0,0 +1,310 @@
+package org.cruk.genesnap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Recording of the touch input of one round, to play it again off the
+ * device with {@link SessionReplayer}.
+ *
+ * Layout, all little-endian:
+ *
+ * <pre>
+ * header   magic "GSSN", version, dataset id, surface width and height,
+ *          frame period in ns, start of the scroll in ns of uptime, score
+ *          at the end of the round or NO_SCORE                 (36 bytes)
+ * samples  per sample: action (1 byte), ms since the previous sample, or
+ *          since the start for the first one, as a zigzag varint, x, y as
+ *          floats                                          (10 bytes mostly)
+ * trailer  CRC32 of everything above                            (4 bytes)
+ * </pre>
+ *
+ * Sample times are MotionEvent times, in ms of the same uptime base as the
+ * start. The score lets a replay tell whether it played the round the way
+ * the device did.
+ * A session is kept in memory while the round is played and written in one
+ * go at its end.
+ */
+public final class SessionFile {
+
+  /** "GSSN" read as a little-endian int. */
+  public static final int MAGIC = 0x4e535347;
+  public static final int VERSION = 2;
+
+  /** Dataset id of a round through the whole genome */
+  public static final int WHOLE_GENOME = -1;
+
+  /** Score of a round that was not played to its end */
+  public static final int NO_SCORE = -1;
+
+  private static final int NANOS_PER_MILLI = 1000000;
+
+  private static final int HEADER_SIZE = 36;
+  private static final int TRAILER_SIZE = 4;
+  /** Largest sample: action, 10 byte varint, x, y */
+  private static final int MAX_SAMPLE_SIZE = 19;
+
+  private final int mDatasetId;
+  private final int mWidth;
+  private final int mHeight;
+  private final int mFramePeriod;
+  private final long mStartTime;
+  private final int mScore;
+  private final int mSampleCount;
+  private final byte[] mActions;
+  private final long[] mTimes;
+  private final float[] mX;
+  private final float[] mY;
+
+  private SessionFile(int datasetId, int width, int height, int framePeriod,
+      long startTime, int score, int sampleCount, byte[] actions,
+      long[] times, float[] x, float[] y) {
+    mDatasetId = datasetId;
+    mWidth = width;
+    mHeight = height;
+    mFramePeriod = framePeriod;
+    mStartTime = startTime;
+    mScore = score;
+    mSampleCount = sampleCount;
+    mActions = actions;
+    mTimes = times;
+    mX = x;
+    mY = y;
+  }
+
+  /**
+   * Validates and decodes a whole file held in <code>buffer</code>, from its
+   * position to its limit.
+   *
+   * @throws IOException if the header or checksum are invalid
+   */
+  public static SessionFile read(ByteBuffer buffer) throws IOException {
+    ByteBuffer buf = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int size = buf.remaining();
+    if (size < HEADER_SIZE + TRAILER_SIZE) {
+      throw new IOException("Session file too short: " + size + " bytes");
+    }
+    if (buf.getInt(0) != MAGIC) {
+      throw new IOException("Not a session file");
+    }
+    int version = buf.getInt(4);
+    if (version != VERSION) {
+      throw new IOException("Unsupported session version " + version);
+    }
+    byte[] data = new byte[size - TRAILER_SIZE];
+    buf.get(data);
+    if (checksum(data, data.length) != buf.getInt()) {
+      throw new IOException("Session checksum mismatch");
+    }
+
+    ByteBuffer header = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    int datasetId = header.getInt(8);
+    int width = header.getInt(12);
+    int height = header.getInt(16);
+    int framePeriod = header.getInt(20);
+    long startTime = header.getLong(24);
+    int score = header.getInt(32);
+    if (width <= 0 || height <= 0 || framePeriod <= 0 || score < NO_SCORE) {
+      throw new IOException("Corrupt session header");
+    }
+
+    // Every sample takes at least 10 bytes
+    int capacity = (data.length - HEADER_SIZE) / 10;
+    byte[] actions = new byte[capacity];
+    long[] times = new long[capacity];
+    float[] xs = new float[capacity];
+    float[] ys = new float[capacity];
+    int count = 0;
+    long time = startTime / NANOS_PER_MILLI;
+    int i = HEADER_SIZE;
+    while (i < data.length) {
+      byte action = data[i++];
+      if (action < TouchRing.ACTION_DOWN || action > TouchRing.ACTION_UP) {
+        throw new IOException("Corrupt session sample " + count);
+      }
+      long zigzag = 0;
+      for (int shift = 0;; shift += 7) {
+        if (i == data.length || shift > 63) {
+          throw new IOException("Corrupt session sample " + count);
+        }
+        byte b = data[i++];
+        zigzag |= (long) (b & 0x7F) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      if (i + 8 > data.length) {
+        throw new IOException("Corrupt session sample " + count);
+      }
+      time += (zigzag >>> 1) ^ -(zigzag & 1);
+      actions[count] = action;
+      times[count] = time;
+      xs[count] = header.getFloat(i);
+      ys[count] = header.getFloat(i + 4);
+      i += 8;
+      count++;
+    }
+    return new SessionFile(datasetId, width, height, framePeriod, startTime,
+        score, count, actions, times, xs, ys);
+  }
+
+  /** Id of the dataset played, or {@link #WHOLE_GENOME}. */
+  public int getDatasetId() {
+    return mDatasetId;
+  }
+
+  /** Size of the surface, in pixels. */
+  public int getWidth() {
+    return mWidth;
+  }
+
+  public int getHeight() {
+    return mHeight;
+  }
+
+  /** Length of a frame of the display, in nanoseconds. */
+  public int getFramePeriod() {
+    return mFramePeriod;
+  }
+
+  /** When the data started to scroll, in ns of uptime. */
+  public long getStartTime() {
+    return mStartTime;
+  }
+
+  /** Score shown at the end of the round, or {@link #NO_SCORE}. */
+  public int getScore() {
+    return mScore;
+  }
+
+  public int getSampleCount() {
+    return mSampleCount;
+  }
+
+  /** Action of sample <code>i</code>, one of the TouchRing actions. */
+  public int getAction(int i) {
+    return mActions[i];
+  }
+
+  /** Time of sample <code>i</code>, in ms of uptime. */
+  public long getTime(int i) {
+    return mTimes[i];
+  }
+
+  /** Position of sample <code>i</code> on the surface. */
+  public float getX(int i) {
+    return mX[i];
+  }
+
+  public float getY(int i) {
+    return mY[i];
+  }
+
+  /**
+   * Encodes a session in memory as it is played. Adding a sample does not
+   * allocate once the buffer has grown to the size of the session.
+   */
+  public static final class Writer {
+
+    private final int mDatasetId;
+    private final int mFramePeriod;
+    private final long mStartTime;
+    private int mWidth = 1;
+    private int mHeight = 1;
+    private int mScore = NO_SCORE;
+
+    private byte[] mData = new byte[4096];
+    private int mSize = HEADER_SIZE;
+    private long mLastTime;
+
+    /**
+     * @param datasetId
+     *          id of the dataset played, or {@link SessionFile#WHOLE_GENOME}
+     * @param framePeriod
+     *          length of a frame of the display, in nanoseconds
+     * @param startTime
+     *          when the data starts to scroll, in ns of uptime
+     */
+    public Writer(int datasetId, int framePeriod, long startTime) {
+      mDatasetId = datasetId;
+      mFramePeriod = framePeriod;
+      mStartTime = startTime;
+      mLastTime = startTime / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Sets the size of the surface, which is often only known once the round
+     * has started. The last size set is the one written.
+     */
+    public void setSurfaceSize(int width, int height) {
+      mWidth = width;
+      mHeight = height;
+    }
+
+    /** Sets the score shown at the end of the round. */
+    public void setScore(int score) {
+      mScore = score;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param action
+     *          one of the TouchRing actions
+     * @param time
+     *          in ms of uptime, like MotionEvent times
+     */
+    public void add(int action, float x, float y, long time) {
+      if (mSize + MAX_SAMPLE_SIZE > mData.length) {
+        mData = Arrays.copyOf(mData, mData.length * 2);
+      }
+      byte[] data = mData;
+      int i = mSize;
+      data[i++] = (byte) action;
+      long delta = time - mLastTime;
+      long zigzag = (delta << 1) ^ (delta >> 63);
+      while ((zigzag & ~0x7FL) != 0) {
+        data[i++] = (byte) (zigzag | 0x80);
+        zigzag >>>= 7;
+      }
+      data[i++] = (byte) zigzag;
+      i = putInt(data, i, Float.floatToRawIntBits(x));
+      mSize = putInt(data, i, Float.floatToRawIntBits(y));
+      mLastTime = time;
+    }
+
+    /** Bytes written so far, without the trailer. */
+    public int size() {
+      return mSize;
+    }
+
+    /** Writes the session, trailer included. */
+    public void writeTo(OutputStream out) throws IOException {
+      ByteBuffer.wrap(mData).order(ByteOrder.LITTLE_ENDIAN).putInt(MAGIC)
+          .putInt(VERSION).putInt(mDatasetId).putInt(mWidth).putInt(mHeight)
+          .putInt(mFramePeriod).putLong(mStartTime).putInt(mScore);
+      byte[] trailer = new byte[TRAILER_SIZE];
+      putInt(trailer, 0, checksum(mData, mSize));
+      out.write(mData, 0, mSize);
+      out.write(trailer);
+    }
+
+    private static int putInt(byte[] data, int i, int value) {
+      data[i] = (byte) value;
+      data[i + 1] = (byte) (value >> 8);
+      data[i + 2] = (byte) (value >> 16);
+      data[i + 3] = (byte) (value >> 24);
+      return i + 4;
+    }
+  }
+
+  private static int checksum(byte[] data, int length) {
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, length);
+    return (int) crc.getValue();
+  }
+}
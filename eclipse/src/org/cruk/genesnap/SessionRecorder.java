@@ -0,0 +1,132 @@
+package org.cruk.genesnap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Records the touch input of every round to a {@link SessionFile} in a
+ * directory, keeping the last MAX_SESSIONS of them.
+ *
+ * A session is encoded in memory while the round is played and written by
+ * a background thread once it is over, so recording a sample never does
+ * I/O. Used from the UI thread only.
+ */
+final class SessionRecorder {
+
+  private static final String TAG = SessionRecorder.class.getName();
+
+  /** Sessions kept in the directory, the oldest are deleted */
+  static final int MAX_SESSIONS = 20;
+
+  static final String SUFFIX = ".gss";
+
+  private final File mDirectory;
+  /** Session of the round being played, null between rounds */
+  private SessionFile.Writer mSession;
+
+  SessionRecorder(File directory) {
+    mDirectory = directory;
+  }
+
+  /**
+   * Starts recording a round, finishing the previous one if it was not.
+   *
+   * @param datasetId
+   *          id of the dataset played, or {@link SessionFile#WHOLE_GENOME}
+   * @param framePeriod
+   *          length of a frame of the display, in nanoseconds
+   * @param startTime
+   *          when the data starts to scroll, in ns of uptime
+   */
+  void start(int datasetId, int framePeriod, long startTime) {
+    finish();
+    mSession = new SessionFile.Writer(datasetId, framePeriod, startTime);
+  }
+
+  /** Sets the size of the surface the round is played on. */
+  void setSurfaceSize(int width, int height) {
+    if (mSession != null) {
+      mSession.setSurfaceSize(width, height);
+    }
+  }
+
+  /** Records the score shown at the end of the round. */
+  void setScore(int score) {
+    if (mSession != null) {
+      mSession.setScore(score);
+    }
+  }
+
+  /** Records a touch sample, see {@link SessionFile.Writer#add}. */
+  void add(int action, float x, float y, long time) {
+    if (mSession != null) {
+      mSession.add(action, x, y, time);
+    }
+  }
+
+  /** Ends the round being recorded and writes it in the background. */
+  void finish() {
+    final SessionFile.Writer session = mSession;
+    if (session == null) {
+      return;
+    }
+    mSession = null;
+    final File file = new File(mDirectory, "session-"
+        + System.currentTimeMillis() + SUFFIX);
+    new Thread("SessionRecorder") {
+      @Override
+      public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        write(file, session);
+        trim();
+      }
+    }.start();
+  }
+
+  /** Writes to a temporary file first so a crash never leaves half a file. */
+  private static void write(File file, SessionFile.Writer session) {
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      Log.w(TAG, "Could not create " + directory);
+      return;
+    }
+    File tmp = new File(directory, file.getName() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        session.writeTo(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp);
+      }
+      Log.d(TAG, "Recorded " + session.size() + " bytes to " + file);
+    } catch (IOException e) {
+      Log.w(TAG, "Could not write " + file, e);
+      tmp.delete();
+    }
+  }
+
+  /** Deletes the oldest sessions past MAX_SESSIONS. */
+  private synchronized void trim() {
+    String[] names = mDirectory.list();
+    if (names == null) {
+      return;
+    }
+    // Names hold the time they were written at, all with the same digits
+    Arrays.sort(names);
+    int sessions = 0;
+    for (int i = names.length - 1; i >= 0; i--) {
+      if (names[i].endsWith(SUFFIX) && ++sessions > MAX_SESSIONS) {
+        new File(mDirectory, names[i]).delete();
+      }
+    }
+  }
+}
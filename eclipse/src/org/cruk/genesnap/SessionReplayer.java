@@ -0,0 +1,104 @@
+package org.cruk.genesnap;
+
+/**
+ * Plays a recorded {@link SessionFile} again without a display, through the
+ * same selection, intersection and scoring code as the render thread.
+ *
+ * The round is cut into frames of the recorded frame period, starting from
+ * the first sample or the start of the scroll, whichever came first. Each
+ * frame moves the {@link Viewport} to its offset, applies the samples made
+ * up to its time, each at the offset of its own time like the render thread
+ * draining its touch ring, then rescores the selections. The round ends when
+ * the points run out, as it does on the device. Frames follow each other
+ * either at the speed they were played or as fast as possible.
+ *
+ * The points must be those of the dataset of the session. Not thread safe.
+ */
+final class SessionReplayer {
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final SessionFile mSession;
+  private final PointStore mPoints;
+  private final Viewport mViewport = new Viewport();
+  private final SelectionBoard mSelections = new SelectionBoard();
+
+  private int mFrames;
+  private int mEntered;
+
+  SessionReplayer(SessionFile session, PointStore points) {
+    mSession = session;
+    mPoints = points;
+  }
+
+  /**
+   * Plays the whole session from the start.
+   *
+   * @param realTime
+   *          whether to wait for the time of each frame, rather than play
+   *          them as fast as possible
+   * @return the score at the end of the round
+   * @throws InterruptedException
+   *           if interrupted while waiting for a frame
+   */
+  int replay(boolean realTime) throws InterruptedException {
+    SessionFile session = mSession;
+    int width = session.getWidth();
+    int height = session.getHeight();
+    long framePeriod = session.getFramePeriod();
+    long start = session.getStartTime();
+    int count = session.getSampleCount();
+
+    mViewport.setPoints(mPoints);
+    mViewport.setCanvasWidth(width);
+    mSelections.clear();
+    mFrames = 0;
+    mEntered = 0;
+    FrameClock clock = realTime ? new FrameClock(1e9f / framePeriod) : null;
+
+    // Time since the start of the scroll, negative until it starts
+    long time = count > 0
+        ? Math.min(0, session.getTime(0) * NANOS_PER_MILLI - start) : 0;
+    int next = 0;
+    int score = 0;
+    for (;; time += framePeriod) {
+      float canvasOffset = time > 0 ? Viewport.offsetAt(time) : 0;
+      mViewport.update(canvasOffset);
+      if (mViewport.isExhausted()) {
+        break;
+      }
+      while (next < count
+          && session.getTime(next) * NANOS_PER_MILLI - start <= time) {
+        Selection entered = mSelections.touch(session.getAction(next),
+            session.getX(next), session.getY(next),
+            Viewport.offsetAt(session.getTime(next), start), width, height,
+            mViewport.first());
+        if (entered != null) {
+          mEntered++;
+        }
+        next++;
+      }
+      score = mSelections.rescore(mViewport);
+      mFrames++;
+      if (clock != null) {
+        clock.waitForNextFrame();
+      }
+    }
+    return score;
+  }
+
+  /** Frames played by the last {@link #replay}. */
+  int getFrameCount() {
+    return mFrames;
+  }
+
+  /** Lines entered during the last {@link #replay}. */
+  int getEnteredCount() {
+    return mEntered;
+  }
+
+  /** Lines left on the board at the end of the last {@link #replay}. */
+  int getSelectionCount() {
+    return mSelections.size();
+  }
+}
@@ -0,0 +1,324 @@
+package org.cruk.genesnap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.util.Log;
+
+/**
+ * Pre-renders the point cloud into fixed width vertical strips ("tiles") so
+ * a frame only has to blit a few bitmaps instead of drawing every point.
+ *
+ * Tile <code>t</code> holds the points whose scaled position is in
+ * [t * TILE_WIDTH, (t + 1) * TILE_WIDTH). A worker thread renders the tiles
+ * under and just ahead of the scroll position into a bounded pool of
+ * bitmaps; tiles that scrolled off the left are reused. A tile that is not
+ * ready yet when it is needed is drawn straight from the points instead.
+ * Once the {@link PointPyramid} of the points is known tiles are drawn from
+ * it, one point per occupied cell.
+ *
+ * When the points are a window of a longer sequence, the window can be
+ * swapped for the next one with {@link #setWindow}, keeping the tiles both
+ * windows hold all the points of.
+ *
+ * {@link #update}, {@link #draw}, {@link #invalidate} and {@link #setWindow}
+ * must be called from the render thread, or from a thread that excludes it.
+ */
+final class TileCache {
+
+  private static final String TAG = TileCache.class.getName();
+
+  /** Width of a tile, in pixels */
+  static final int TILE_WIDTH = 256;
+
+  /** Tiles rendered ahead of the right edge of the screen */
+  private static final int AHEAD_TILES = 2;
+
+  /** Margin drawn around a tile so points straddling its edges are whole */
+  private static final float POINT_MARGIN = 4;
+
+  private static final int UNASSIGNED = Integer.MIN_VALUE;
+
+  private static final class Tile {
+    /** Tile index, UNASSIGNED if none */
+    int index = UNASSIGNED;
+    /** Bumped on every reassignment so the worker can spot stale work */
+    int generation;
+    Bitmap bitmap;
+    boolean ready;
+  }
+
+  private final Object mLock = new Object();
+  private final int[] mRgbMiddle;
+  private final int[] mRgbEdge;
+
+  private Tile[] mTiles = new Tile[0];
+  private PointStore mPoints = PointStore.EMPTY;
+  private PointPyramid mPyramid;
+  /** Canvas offsets mPoints holds all the points of */
+  private float mFrom = Float.NEGATIVE_INFINITY;
+  private float mTo = Float.POSITIVE_INFINITY;
+  private int mHeight = 1;
+  private int mWidth = 1;
+  private Worker mWorker;
+
+  /** Used by the render thread to draw tiles that are not ready */
+  private final PointBatcher mFallbackBatcher;
+
+  TileCache(int[] rgbMiddle, int[] rgbEdge) {
+    mRgbMiddle = rgbMiddle;
+    mRgbEdge = rgbEdge;
+    mFallbackBatcher = new PointBatcher(rgbMiddle, rgbEdge);
+  }
+
+  /**
+   * Drops all the tiles. Call when the points or the surface size change.
+   * The points hold all those between canvas offsets <code>from</code> and
+   * <code>to</code>, infinite unless they are a window.
+   */
+  void invalidate(PointStore points, PointPyramid pyramid, float from,
+      float to, int width, int height) {
+    synchronized (mLock) {
+      mPoints = points;
+      mPyramid = pyramid;
+      mFrom = from;
+      mTo = to;
+      mWidth = width;
+      mHeight = height;
+      int count = (width + TILE_WIDTH - 1) / TILE_WIDTH + 1 + AHEAD_TILES;
+      if (count != mTiles.length) {
+        // Bitmaps of the old tiles are left to the garbage collector as
+        // the worker may still be drawing into one of them
+        mTiles = new Tile[count];
+        for (int i = 0; i < count; i++) {
+          mTiles[i] = new Tile();
+        }
+      } else {
+        for (Tile tile : mTiles) {
+          tile.index = UNASSIGNED;
+          tile.generation++;
+          tile.ready = false;
+        }
+      }
+      mLock.notifyAll();
+    }
+  }
+
+  /**
+   * Swaps in the next window of points, holding all those between canvas
+   * offsets <code>from</code> and <code>to</code>. Tiles both windows hold
+   * all the points of are kept as they are; only the others are drawn again.
+   */
+  void setWindow(PointStore points, PointPyramid pyramid, float from,
+      float to) {
+    synchronized (mLock) {
+      float keepFrom = Math.max(mFrom, from);
+      float keepTo = Math.min(mTo, to);
+      mPoints = points;
+      mPyramid = pyramid;
+      mFrom = from;
+      mTo = to;
+      boolean dropped = false;
+      for (Tile tile : mTiles) {
+        if (tile.index == UNASSIGNED) {
+          continue;
+        }
+        float start = tile.index * TILE_WIDTH;
+        if (start - POINT_MARGIN < keepFrom
+            || start + TILE_WIDTH + POINT_MARGIN > keepTo) {
+          tile.generation++;
+          tile.ready = false;
+          dropped = true;
+        }
+      }
+      if (dropped) {
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Makes sure the tiles under and ahead of the screen are assigned, reusing
+   * the ones that scrolled off, and wakes up the worker to render them.
+   */
+  void update(float canvasOffset) {
+    int first = firstVisibleTile(canvasOffset);
+    synchronized (mLock) {
+      int last = first + mTiles.length - 1;
+      if (mWorker == null) {
+        mWorker = new Worker();
+        mWorker.start();
+      }
+      boolean assigned = false;
+      for (int t = first; t <= last; t++) {
+        if (find(t) != null) {
+          continue;
+        }
+        for (Tile tile : mTiles) {
+          if (tile.index < first || tile.index > last) {
+            tile.index = t;
+            tile.generation++;
+            tile.ready = false;
+            assigned = true;
+            break;
+          }
+        }
+      }
+      if (assigned) {
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Draws the visible part of the point cloud: ready tiles are blitted,
+   * missing ones drawn directly from the points.
+   */
+  void draw(Canvas canvas, float canvasOffset, Paint pointPaint) {
+    int first = firstVisibleTile(canvasOffset);
+    int last = (int) Math.floor(canvasOffset / TILE_WIDTH);
+    for (int t = first; t <= last; t++) {
+      float left = mWidth - canvasOffset + t * TILE_WIDTH;
+      Bitmap bitmap = null;
+      synchronized (mLock) {
+        Tile tile = find(t);
+        if (tile != null && tile.ready) {
+          bitmap = tile.bitmap;
+        }
+      }
+      if (bitmap != null) {
+        canvas.drawBitmap(bitmap, left, 0, null);
+      } else {
+        drawPoints(canvas, mFallbackBatcher, pointPaint, mPoints, mPyramid,
+            mHeight, t, left);
+      }
+    }
+  }
+
+  /** Stops the worker thread. */
+  void quit() {
+    synchronized (mLock) {
+      if (mWorker != null) {
+        mWorker.mQuit = true;
+        mWorker = null;
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  private int firstVisibleTile(float canvasOffset) {
+    return (int) Math.floor((canvasOffset - mWidth) / TILE_WIDTH);
+  }
+
+  /** Must hold mLock */
+  private Tile find(int index) {
+    for (Tile tile : mTiles) {
+      if (tile.index == index) {
+        return tile;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Draws the points of tile <code>t</code> with its left edge at x =
+   * <code>left</code>, including the ones straddling its edges. Goes through
+   * <code>pyramid</code> instead of the points when it is not null.
+   */
+  private static void drawPoints(Canvas canvas, PointBatcher batcher,
+      Paint paint, PointStore points, PointPyramid pyramid, int height, int t,
+      float left) {
+    float start = t * TILE_WIDTH;
+    if (pyramid != null) {
+      // Shifted left with from, so positions land where they would have
+      pyramid.draw(batcher, start - POINT_MARGIN,
+          start + TILE_WIDTH + POINT_MARGIN, left - POINT_MARGIN, height,
+          paint.getStrokeWidth());
+      batcher.flush(canvas, paint);
+      return;
+    }
+    int from = points.lowerBound(0, points.size(), start - POINT_MARGIN);
+    int to = points.upperBound(from, points.size(),
+        start + TILE_WIDTH + POINT_MARGIN);
+    for (int i = from; i < to; i++) {
+      float value = points.value(i);
+      batcher.add(left + points.scaled(i) - start, value * height, value);
+    }
+    batcher.flush(canvas, paint);
+  }
+
+  private final class Worker extends Thread {
+    volatile boolean mQuit;
+    private final PointBatcher mBatcher = new PointBatcher(mRgbMiddle, mRgbEdge);
+    private final Paint mPaint = new Paint();
+    private final Canvas mCanvas = new Canvas();
+
+    Worker() {
+      super("TileCache");
+      mPaint.setStrokeWidth(4);
+    }
+
+    @Override
+    public void run() {
+      while (!mQuit) {
+        Tile tile = null;
+        int index;
+        int generation;
+        int height;
+        PointStore points;
+        PointPyramid pyramid;
+        synchronized (mLock) {
+          while (!mQuit && (tile = nextToRender()) == null) {
+            try {
+              mLock.wait();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+          if (mQuit) {
+            return;
+          }
+          index = tile.index;
+          generation = tile.generation;
+          height = mHeight;
+          points = mPoints;
+          pyramid = mPyramid;
+        }
+
+        Bitmap bitmap = tile.bitmap;
+        if (bitmap == null || bitmap.getHeight() != height) {
+          if (bitmap != null) {
+            bitmap.recycle();
+          }
+          bitmap = Bitmap.createBitmap(TILE_WIDTH, height, Bitmap.Config.ARGB_8888);
+        }
+        mCanvas.setBitmap(bitmap);
+        mCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        drawPoints(mCanvas, mBatcher, mPaint, points, pyramid, height, index, 0);
+        mCanvas.setBitmap(null);
+
+        synchronized (mLock) {
+          tile.bitmap = bitmap;
+          if (tile.generation == generation) {
+            tile.ready = true;
+          }
+        }
+      }
+      Log.d(TAG, "Tile worker done");
+    }
+
+    /** Tile closest to the screen that still needs rendering. Hold mLock. */
+    private Tile nextToRender() {
+      Tile next = null;
+      for (Tile tile : mTiles) {
+        if (tile.index != UNASSIGNED && !tile.ready
+            && (next == null || tile.index < next.index)) {
+          next = tile;
+        }
+      }
+      return next;
+    }
+  }
+}
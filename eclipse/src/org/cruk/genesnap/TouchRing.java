@@ -0,0 +1,87 @@
+package org.cruk.genesnap;
+
+/**
+ * Preallocated ring of touch samples handed from one producer thread, the UI
+ * thread, to one consumer thread, the render thread, without locks.
+ *
+ * The producer writes a sample into its slot then publishes it by advancing
+ * mHead; the consumer reads the samples up to mHead then frees their slots
+ * by advancing mTail. Each index is written by one thread only, and being
+ * volatile orders the slot writes before it. When the consumer falls
+ * CAPACITY samples behind, new samples are dropped rather than blocking the
+ * producer.
+ */
+final class TouchRing {
+
+  static final int ACTION_DOWN = 0;
+  static final int ACTION_MOVE = 1;
+  static final int ACTION_UP = 2;
+
+  /** Samples the ring holds, a power of two */
+  static final int CAPACITY = 1024;
+  private static final int MASK = CAPACITY - 1;
+
+  interface Consumer {
+    /**
+     * @param time
+     *          when the sample was taken, in the uptime base of
+     *          MotionEvent
+     */
+    void onTouch(int action, float x, float y, long time);
+  }
+
+  private final int[] mActions = new int[CAPACITY];
+  private final float[] mX = new float[CAPACITY];
+  private final float[] mY = new float[CAPACITY];
+  private final long[] mTimes = new long[CAPACITY];
+
+  /** Number of samples ever added, written by the producer only */
+  private volatile long mHead;
+  /** Number of samples ever consumed, written by the consumer only */
+  private volatile long mTail;
+
+  /** Samples dropped because the ring was full, producer only */
+  private int mDropped;
+
+  /**
+   * Adds a sample. Producer thread only.
+   *
+   * @return false if the ring was full and the sample was dropped
+   */
+  boolean add(int action, float x, float y, long time) {
+    long head = mHead;
+    if (head - mTail == CAPACITY) {
+      mDropped++;
+      return false;
+    }
+    int i = (int) head & MASK;
+    mActions[i] = action;
+    mX[i] = x;
+    mY[i] = y;
+    mTimes[i] = time;
+    mHead = head + 1;
+    return true;
+  }
+
+  /** Samples dropped so far. Producer thread only. */
+  int getDropped() {
+    return mDropped;
+  }
+
+  /**
+   * Hands the samples added so far, oldest first, to <code>consumer</code>.
+   * Consumer thread only.
+   *
+   * @return the number of samples handed over
+   */
+  int drain(Consumer consumer) {
+    long tail = mTail;
+    long head = mHead;
+    for (long t = tail; t < head; t++) {
+      int i = (int) t & MASK;
+      consumer.onTouch(mActions[i], mX[i], mY[i], mTimes[i]);
+    }
+    mTail = head;
+    return (int) (head - tail);
+  }
+}
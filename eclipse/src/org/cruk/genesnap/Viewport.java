@@ -0,0 +1,177 @@
+package org.cruk.genesnap;
+
+/**
+ * Keeps track of which points are on screen, as the range [first, last) of
+ * indexes into the {@link PointStore}. Computed once per frame by the
+ * physics and then shared by the drawing and scoring code.
+ *
+ * A point is at x = canvasWidth - canvasOffset + pos * POS_CONVERSION_FACTOR
+ * and is visible while 0 <= x <= canvasWidth. As the canvas offset only grows
+ * during a round both ends of the range are moved with cursors; after a
+ * restart, a resize or a big jump they are found again by binary search.
+ */
+final class Viewport {
+
+  /** Canvas pixels per base of genomic position */
+  static final float POS_CONVERSION_FACTOR = 0.00002f;
+
+  /** Canvas pixels scrolled per second */
+  static final int SCROLL_SPEED = 120;
+
+  /** Cursor steps to try before falling back to a binary search */
+  private static final int MAX_CURSOR_STEPS = 32;
+
+  private PointStore mPoints = PointStore.EMPTY;
+  private int mCanvasWidth = 1;
+  private float mCanvasOffset;
+  private int mFirst;
+  private int mLast;
+  private boolean mSeek = true;
+
+  /** Canvas offset after <code>time</code> nanoseconds of scrolling. */
+  static float offsetAt(long time) {
+    return (float) (time / 1e9 * SCROLL_SPEED);
+  }
+
+  /**
+   * Canvas offset at <code>time</code>, in ms of uptime like MotionEvent
+   * times, of a scroll that starts at <code>startTime</code> ns of uptime;
+   * 0 before it starts.
+   */
+  static float offsetAt(long time, long startTime) {
+    return offsetAt(Math.max(0, time * 1000000L - startTime));
+  }
+
+  void setPoints(PointStore points) {
+    mPoints = points;
+    seek();
+  }
+
+  PointStore getPoints() {
+    return mPoints;
+  }
+
+  void setCanvasWidth(int canvasWidth) {
+    mCanvasWidth = canvasWidth;
+    seek();
+  }
+
+  /** Forgets the cursors, the next update will binary search both ends. */
+  void seek() {
+    mSeek = true;
+  }
+
+  /** Moves the range to a new canvas offset. */
+  void update(float canvasOffset) {
+    if (mSeek || canvasOffset < mCanvasOffset) {
+      mCanvasOffset = canvasOffset;
+      mFirst = searchFirst(0);
+      mLast = searchLast(mFirst);
+      mSeek = false;
+      return;
+    }
+    mCanvasOffset = canvasOffset;
+    mFirst = advanceFirst(mFirst);
+    mLast = advanceLast(Math.max(mFirst, mLast));
+  }
+
+  /** Index of the first point on screen, or past the end if none are left. */
+  int first() {
+    return mFirst;
+  }
+
+  /** Index right after the last point on screen. */
+  int last() {
+    return mLast;
+  }
+
+  /** Whether every point has scrolled off the left of the screen. */
+  boolean isExhausted() {
+    return mFirst >= mPoints.size();
+  }
+
+  private float x(int i) {
+    return mCanvasWidth - mCanvasOffset + mPoints.scaled(i);
+  }
+
+  private int advanceFirst(int i) {
+    int end = mPoints.size();
+    for (int steps = 0; i < end && x(i) < 0; i++) {
+      if (++steps > MAX_CURSOR_STEPS) {
+        return searchFirst(i);
+      }
+    }
+    return i;
+  }
+
+  private int advanceLast(int i) {
+    int end = mPoints.size();
+    for (int steps = 0; i < end && x(i) <= mCanvasWidth; i++) {
+      if (++steps > MAX_CURSOR_STEPS) {
+        return searchLast(i);
+      }
+    }
+    return i;
+  }
+
+  /** First point at or after <code>from</code> with x >= 0. */
+  private int searchFirst(int from) {
+    return mPoints.lowerBound(from, mPoints.size(), mCanvasOffset - mCanvasWidth);
+  }
+
+  /** First point at or after <code>from</code> with x > canvasWidth. */
+  private int searchLast(int from) {
+    return mPoints.upperBound(from, mPoints.size(), mCanvasOffset);
+  }
+
+  /**
+   * Index of the first point whose scaled position is not less than
+   * <code>offset</code>, or the number of points. The search starts at
+   * <code>from</code> unless the answer is before it, which happens when the
+   * hint was taken from points since replaced. Only searches the visible
+   * range when the answer is known to be in it.
+   */
+  int lowerBound(int from, float offset) {
+    int to = mPoints.size();
+    if (from > to || from > 0 && mPoints.scaled(from - 1) >= offset) {
+      // Stale hint, from points that have been replaced since
+      from = 0;
+    }
+    if (from < mFirst && mFirst < to && mPoints.scaled(mFirst) < offset) {
+      from = mFirst;
+    }
+    if (mLast < to && mLast >= from && mPoints.scaled(mLast) >= offset) {
+      to = mLast;
+    }
+    return mPoints.lowerBound(from, to, offset);
+  }
+
+  /**
+   * Index of the first point at or after <code>from</code> whose scaled
+   * position is greater than <code>offset</code>, or the number of points.
+   * Only searches the visible range when the answer is known to be in it.
+   */
+  int upperBound(int from, float offset) {
+    int to = mPoints.size();
+    if (from < mFirst && mFirst < to && mPoints.scaled(mFirst) <= offset) {
+      from = mFirst;
+    }
+    if (mLast < to && mLast >= from && mPoints.scaled(mLast) > offset) {
+      to = mLast;
+    }
+    return mPoints.upperBound(from, to, offset);
+  }
+
+  /**
+   * Places every point on screen on a canvas <code>canvasHeight</code>
+   * pixels high and hands it to <code>sink</code>.
+   */
+  void emit(PointSink sink, int canvasHeight) {
+    float left = mCanvasWidth - mCanvasOffset;
+    PointStore points = mPoints;
+    for (int i = mFirst; i < mLast; i++) {
+      float value = points.value(i);
+      sink.add(left + points.scaled(i), value * canvasHeight, value);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.cruk.genesnap.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cruk.genesnap.BafParser;
+import org.cruk.genesnap.PointSetFile;
+import org.cruk.genesnap.PointStore;
+
+/**
+ * Converts tab separated chromosome / position / BAF files, like
+ * res/raw/chrom1.txt, into a single {@link PointSetFile} for the app's
+ * assets.
+ *
+ * <pre>
+ * javac -d out -sourcepath eclipse/src:tools/src \
+ *     tools/src/org/cruk/genesnap/tools/PointSetConverter.java
+ * java -cp out org.cruk.genesnap.tools.PointSetConverter \
+ *     eclipse/assets/points.gsp eclipse/res/raw/chrom1.txt [more.txt ...]
+ * </pre>
+ *
+ * Every chromosome found in the inputs becomes one entry; a chromosome that
+ * appears in more than one input is an error.
+ */
+public class PointSetConverter {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: PointSetConverter <output.gsp> <input.txt>...");
+      System.exit(1);
+    }
+    List<Integer> chromosomes = new ArrayList<Integer>();
+    List<Integer> bases = new ArrayList<Integer>();
+    List<PointStore> points = new ArrayList<PointStore>();
+
+    for (int i = 1; i < args.length; i++) {
+      BafParser parser = new BafParser();
+      PointStore parsed;
+      InputStream in = new FileInputStream(args[i]);
+      try {
+        parsed = parser.parse(in);
+      } finally {
+        in.close();
+      }
+      for (int run = 0; run < parser.getChromosomeCount(); run++) {
+        int chromosome = parser.getChromosome(run);
+        if (chromosomes.contains(chromosome)) {
+          throw new IOException("Chromosome " + BafParser.chromosomeName(chromosome)
+              + " found twice, in " + args[i]);
+        }
+        chromosomes.add(chromosome);
+        bases.add(parser.getChromosomeBase(run));
+        points.add(parsed.copyOfRange(parser.getChromosomeStart(run),
+            parser.getChromosomeEnd(run)));
+        System.out.println(args[i] + ": chromosome "
+            + BafParser.chromosomeName(chromosome) + ", "
+            + points.get(points.size() - 1).size() + " points");
+      }
+    }
+
+    int[] chromosomeArray = new int[chromosomes.size()];
+    int[] baseArray = new int[bases.size()];
+    for (int i = 0; i < chromosomeArray.length; i++) {
+      chromosomeArray[i] = chromosomes.get(i);
+      baseArray[i] = bases.get(i);
+    }
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(args[0]));
+    try {
+      PointSetFile.write(out, chromosomeArray, baseArray,
+          points.toArray(new PointStore[points.size()]));
+    } finally {
+      out.close();
+    }
+  }
+}
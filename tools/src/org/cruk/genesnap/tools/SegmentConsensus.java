@@ -0,0 +1,494 @@
+package org.cruk.genesnap.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cruk.genesnap.BafParser;
+import org.cruk.genesnap.SelectionLogFile;
+
+/**
+ * Merges the selections of many players, read from {@link SelectionLogFile}
+ * logs, into consensus segments of constant BAF level.
+ *
+ * <pre>
+ * javac -d out -sourcepath eclipse/src:tools/src \
+ *     tools/src/org/cruk/genesnap/tools/SegmentConsensus.java
+ * java -cp out org.cruk.genesnap.tools.SegmentConsensus \
+ *     consensus.tsv selections.log [more.log ...]
+ * </pre>
+ *
+ * Logs are streamed once and their selections spilled, per chromosome, to
+ * temporary runs sorted by start, so memory is bounded by SPILL_BUDGET
+ * whatever the number of selections. Chromosomes are then merged in
+ * parallel: the runs of a chromosome are merged by start into a sweep line
+ * that keeps the selections covering the current position in a heap by end.
+ * Between consecutive starts and ends the support and mean level of the
+ * covering selections are constant; adjacent stretches with at least
+ * MIN_SUPPORT selections and levels within LEVEL_TOLERANCE are joined into
+ * one consensus segment.
+ *
+ * Levels are mirrored heights |height - 0.5|, as players may trace either
+ * band of a heterozygous region. The output has one segment per line:
+ * chromosome, start, end, mean support, level, BAF of the upper band, and
+ * whether the start is a breakpoint from the segment before it rather than
+ * the end of a stretch with too little support.
+ */
+public class SegmentConsensus {
+
+  /** Selections needed over a position for a consensus */
+  static final int MIN_SUPPORT = 3;
+
+  /** Largest difference of level between stretches of the same segment */
+  static final float LEVEL_TOLERANCE = 0.05f;
+
+  /** Selections buffered over all chromosomes before spilling some */
+  static final int SPILL_BUDGET = 4 * 1024 * 1024;
+
+  private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: SegmentConsensus <output.tsv> <selections.log>...");
+      System.exit(1);
+    }
+    File tmp = createTempDirectory();
+    try {
+      TreeMap<Integer, Partition> partitions = spill(args, tmp);
+      merge(partitions, new File(args[0]));
+    } finally {
+      for (File file : tmp.listFiles()) {
+        file.delete();
+      }
+      tmp.delete();
+    }
+  }
+
+  private static File createTempDirectory() throws IOException {
+    File tmp = File.createTempFile("consensus", "");
+    if (!tmp.delete() || !tmp.mkdir()) {
+      throw new IOException("Could not create " + tmp);
+    }
+    return tmp;
+  }
+
+  /** Reads all the logs into sorted runs, one set of runs per chromosome. */
+  private static TreeMap<Integer, Partition> spill(String[] args, File tmp)
+      throws IOException {
+    TreeMap<Integer, Partition> partitions = new TreeMap<Integer, Partition>();
+    int buffered = 0;
+    long total = 0;
+    for (int i = 1; i < args.length; i++) {
+      InputStream in = new BufferedInputStream(new FileInputStream(args[i]),
+          IO_BUFFER_SIZE);
+      try {
+        SelectionLogFile.Reader reader = new SelectionLogFile.Reader(in);
+        SelectionLogFile.Record record;
+        int count = 0;
+        while ((record = reader.next()) != null) {
+          if (record.end <= record.start || !(record.height >= 0)
+              || !(record.height <= 1)) {
+            continue;
+          }
+          Partition partition = partitions.get(record.chromosome);
+          if (partition == null) {
+            partition = new Partition(record.chromosome);
+            partitions.put(record.chromosome, partition);
+          }
+          partition.add(record.start, record.end,
+              Math.abs(record.height - 0.5f));
+          count++;
+          if (++buffered == SPILL_BUDGET) {
+            buffered -= largest(partitions).spill(tmp);
+          }
+        }
+        System.out.println(args[i] + ": " + count + " selections"
+            + (reader.isTorn() ? ", torn after " + reader.getValidLength()
+                + " bytes" : ""));
+        total += count;
+      } finally {
+        in.close();
+      }
+    }
+    for (Partition partition : partitions.values()) {
+      partition.spill(tmp);
+    }
+    System.out.println(total + " selections on " + partitions.size()
+        + " chromosomes");
+    return partitions;
+  }
+
+  private static Partition largest(TreeMap<Integer, Partition> partitions) {
+    Partition largest = null;
+    for (Partition partition : partitions.values()) {
+      if (largest == null || partition.mSize > largest.mSize) {
+        largest = partition;
+      }
+    }
+    return largest;
+  }
+
+  /**
+   * Sweeps every chromosome on its own thread into its own file, then joins
+   * the files in chromosome order.
+   */
+  private static void merge(TreeMap<Integer, Partition> partitions, File output)
+      throws IOException, InterruptedException {
+    int threads = Math.max(1, Math.min(partitions.size(),
+        Runtime.getRuntime().availableProcessors()));
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<File>> results = new ArrayList<Future<File>>();
+    try {
+      for (Partition partition : partitions.values()) {
+        results.add(executor.submit(partition));
+      }
+      Writer out = new BufferedWriter(new FileWriter(output), IO_BUFFER_SIZE);
+      try {
+        out.write("#chromosome\tstart\tend\tsupport\tlevel\tbaf\tbreakpoint\n");
+        char[] buf = new char[IO_BUFFER_SIZE];
+        for (Future<File> result : results) {
+          File file = result.get();
+          BufferedReader in = new BufferedReader(new FileReader(file));
+          try {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+              out.write(buf, 0, n);
+            }
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        out.close();
+      }
+    } catch (ExecutionException e) {
+      throw new IOException("Merging failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Selections of one chromosome: a buffer of the latest ones, and the runs
+   * spilled so far. Called, once spilled, to sweep its runs into a file of
+   * consensus segments.
+   */
+  private static final class Partition implements Callable<File> {
+
+    private final int mChromosome;
+    private int[] mStarts = new int[1024];
+    private int[] mEnds = new int[1024];
+    private float[] mLevels = new float[1024];
+    private int mSize;
+    private final List<File> mRuns = new ArrayList<File>();
+    private File mDirectory;
+
+    Partition(int chromosome) {
+      mChromosome = chromosome;
+    }
+
+    void add(int start, int end, float level) {
+      if (mSize == mStarts.length) {
+        int capacity = mSize * 2;
+        mStarts = Arrays.copyOf(mStarts, capacity);
+        mEnds = Arrays.copyOf(mEnds, capacity);
+        mLevels = Arrays.copyOf(mLevels, capacity);
+      }
+      mStarts[mSize] = start;
+      mEnds[mSize] = end;
+      mLevels[mSize] = level;
+      mSize++;
+    }
+
+    /**
+     * Writes the buffered selections sorted by start to a new run and
+     * empties the buffer.
+     *
+     * @return the number of selections spilled
+     */
+    int spill(File directory) throws IOException {
+      mDirectory = directory;
+      int size = mSize;
+      if (size == 0) {
+        return 0;
+      }
+      // Sort (start, index) keys rather than boxed selections
+      long[] order = new long[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = (long) mStarts[i] << 32 | i;
+      }
+      Arrays.sort(order);
+      File run = new File(directory, "chr" + BafParser.chromosomeName(mChromosome)
+          + "-" + mRuns.size() + ".run");
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(run), IO_BUFFER_SIZE));
+      try {
+        for (int i = 0; i < size; i++) {
+          int s = (int) order[i];
+          out.writeInt(mStarts[s]);
+          out.writeInt(mEnds[s]);
+          out.writeFloat(mLevels[s]);
+        }
+      } finally {
+        out.close();
+      }
+      mRuns.add(run);
+      mSize = 0;
+      if (mStarts.length > SPILL_BUDGET / 16) {
+        // Give the memory back after a big spill
+        mStarts = new int[1024];
+        mEnds = new int[1024];
+        mLevels = new float[1024];
+      }
+      return size;
+    }
+
+    @Override
+    public File call() throws IOException {
+      String name = BafParser.chromosomeName(mChromosome);
+      File output = new File(mDirectory, "chr" + name + ".tsv");
+      PriorityQueue<RunReader> runs = new PriorityQueue<RunReader>(
+          Math.max(1, mRuns.size()), new Comparator<RunReader>() {
+            @Override
+            public int compare(RunReader a, RunReader b) {
+              return a.mStart < b.mStart ? -1 : a.mStart == b.mStart ? 0 : 1;
+            }
+          });
+      Writer out = new BufferedWriter(new FileWriter(output), IO_BUFFER_SIZE);
+      try {
+        for (File run : mRuns) {
+          RunReader reader = new RunReader(run);
+          if (reader.next()) {
+            runs.add(reader);
+          } else {
+            reader.close();
+          }
+        }
+        Sweep sweep = new Sweep(new Consensus(name, out));
+        while (!runs.isEmpty()) {
+          RunReader reader = runs.poll();
+          sweep.add(reader.mStart, reader.mEnd, reader.mLevel);
+          if (reader.next()) {
+            runs.add(reader);
+          } else {
+            reader.close();
+          }
+        }
+        sweep.finish();
+      } finally {
+        for (RunReader reader : runs) {
+          reader.close();
+        }
+        out.close();
+      }
+      return output;
+    }
+  }
+
+  /** Reads a spilled run one selection at a time. */
+  private static final class RunReader {
+    private final DataInputStream mIn;
+    int mStart;
+    int mEnd;
+    float mLevel;
+
+    RunReader(File run) throws IOException {
+      mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(run),
+          IO_BUFFER_SIZE));
+    }
+
+    /** Reads the next selection, false at the end of the run. */
+    boolean next() throws IOException {
+      try {
+        mStart = mIn.readInt();
+      } catch (EOFException e) {
+        return false;
+      }
+      mEnd = mIn.readInt();
+      mLevel = mIn.readFloat();
+      return true;
+    }
+
+    void close() throws IOException {
+      mIn.close();
+    }
+  }
+
+  /**
+   * Sweep line over selections added by increasing start. Reports every
+   * stretch between consecutive starts and ends with the number and the
+   * summed levels of the selections covering it.
+   */
+  private static final class Sweep {
+    private final Consensus mConsensus;
+
+    /** Binary min-heap of the covering selections, by end */
+    private int[] mHeapEnds = new int[64];
+    private float[] mHeapLevels = new float[64];
+    private int mHeapSize;
+
+    private int mPosition = Integer.MIN_VALUE;
+    private double mLevelSum;
+
+    Sweep(Consensus consensus) {
+      mConsensus = consensus;
+    }
+
+    void add(int start, int end, float level) throws IOException {
+      advance(start);
+      if (mHeapSize == mHeapEnds.length) {
+        mHeapEnds = Arrays.copyOf(mHeapEnds, mHeapSize * 2);
+        mHeapLevels = Arrays.copyOf(mHeapLevels, mHeapSize * 2);
+      }
+      int i = mHeapSize++;
+      while (i > 0 && mHeapEnds[(i - 1) / 2] > end) {
+        mHeapEnds[i] = mHeapEnds[(i - 1) / 2];
+        mHeapLevels[i] = mHeapLevels[(i - 1) / 2];
+        i = (i - 1) / 2;
+      }
+      mHeapEnds[i] = end;
+      mHeapLevels[i] = level;
+      mLevelSum += level;
+    }
+
+    void finish() throws IOException {
+      advance(Integer.MAX_VALUE);
+      mConsensus.finish();
+    }
+
+    /** Reports the stretches up to <code>position</code>. */
+    private void advance(int position) throws IOException {
+      while (mHeapSize > 0 && mHeapEnds[0] <= position) {
+        int end = mHeapEnds[0];
+        report(end);
+        mLevelSum -= mHeapLevels[0];
+        removeMin();
+        if (mHeapSize == 0) {
+          // No drift carried over to the next covered stretch
+          mLevelSum = 0;
+        }
+      }
+      if (position != Integer.MAX_VALUE) {
+        report(position);
+      }
+    }
+
+    private void report(int position) throws IOException {
+      if (position > mPosition && mHeapSize > 0) {
+        mConsensus.stretch(mPosition, position, mHeapSize, mLevelSum);
+      }
+      mPosition = Math.max(mPosition, position);
+    }
+
+    private void removeMin() {
+      int last = --mHeapSize;
+      int end = mHeapEnds[last];
+      float level = mHeapLevels[last];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= last) {
+          break;
+        }
+        if (child + 1 < last && mHeapEnds[child + 1] < mHeapEnds[child]) {
+          child++;
+        }
+        if (mHeapEnds[child] >= end) {
+          break;
+        }
+        mHeapEnds[i] = mHeapEnds[child];
+        mHeapLevels[i] = mHeapLevels[child];
+        i = child;
+      }
+      mHeapEnds[i] = end;
+      mHeapLevels[i] = level;
+    }
+  }
+
+  /**
+   * Joins the stretches reported by a sweep into consensus segments and
+   * writes them out.
+   */
+  private static final class Consensus {
+    private final String mChromosome;
+    private final Writer mOut;
+
+    private boolean mOpen;
+    private boolean mBreakpoint;
+    private int mStart;
+    private int mEnd;
+    /** Sums over the stretches of the segment, weighted by length */
+    private double mLevelSum;
+    private double mSupportSum;
+
+    Consensus(String chromosome, Writer out) {
+      mChromosome = chromosome;
+      mOut = out;
+    }
+
+    void stretch(int start, int end, int support, double levelSum)
+        throws IOException {
+      if (support < MIN_SUPPORT) {
+        close();
+        return;
+      }
+      double level = levelSum / support;
+      boolean adjacent = mOpen && mEnd == start;
+      if (adjacent && Math.abs(level - mLevelSum / mSupportSum) <= LEVEL_TOLERANCE) {
+        mEnd = end;
+        mLevelSum += level * support * (end - (double) start);
+        mSupportSum += support * (end - (double) start);
+        return;
+      }
+      close();
+      mOpen = true;
+      mBreakpoint = adjacent;
+      mStart = start;
+      mEnd = end;
+      mLevelSum = level * support * (end - (double) start);
+      mSupportSum = support * (end - (double) start);
+    }
+
+    void finish() throws IOException {
+      close();
+    }
+
+    private void close() throws IOException {
+      if (!mOpen) {
+        return;
+      }
+      mOpen = false;
+      double length = mEnd - (double) mStart;
+      double level = mLevelSum / mSupportSum;
+      double baf = BafParser.POINT_VALUE_TRIM + (1 - 2 * BafParser.POINT_VALUE_TRIM)
+          * (0.5 + level);
+      mOut.write(mChromosome + "\t" + mStart + "\t" + mEnd + "\t"
+          + String.format(Locale.ROOT, "%.1f\t%.4f\t%.4f", mSupportSum / length, level, baf)
+          + "\t" + (mBreakpoint ? 1 : 0) + "\n");
+    }
+  }
+}